@@ -0,0 +1,61 @@
+import avltree.bench.Schema;
+import avltree.bench.TreeHandle;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.function.Consumer;
+
+/*
+ * The benchmarks' handle on an AVLTree, see TreeHandle for why it is needed.
+ */
+public class AVLTreeHandle implements TreeHandle {
+    private AVLTree tree;
+
+    public void load(String file, Schema schema, int size) throws IOException {
+        AVLTree loader = new AVLTree(file, schema.fieldLengths(), schema.numIntFields());
+        loader.bulkLoad(size, new Iterator<AVLTree.Record>() {
+            int i = 0;
+
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            public AVLTree.Record next() {
+                int k = 2 * i++;
+                return new AVLTree.Record(k, schema.stringFields(k), schema.intFields(k));
+            }
+        });
+        loader.close();
+    }
+
+    public void open(String file) throws IOException {
+        tree = new AVLTree(file);
+    }
+
+    public void insert(int k, char[][] sFields, int[] iFields) throws IOException {
+        tree.insert(k, sFields, iFields);
+    }
+
+    public void remove(int k) throws IOException {
+        tree.remove(k);
+    }
+
+    public LinkedList<String> stringFind(int k) throws IOException {
+        return tree.stringFind(k);
+    }
+
+    public LinkedList<Integer> intFind(int k) throws IOException {
+        return tree.intFind(k);
+    }
+
+    public void traverse(Consumer<Object> visitor) throws IOException {
+        try (AVLTree.Cursor c = tree.scan(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+            while (c.hasNext())
+                visitor.accept(c.next());
+        }
+    }
+
+    public void close() throws IOException {
+        tree.close();
+    }
+}
@@ -0,0 +1,101 @@
+package avltree.bench;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * The basic operations of AVLTree, measured for throughput and for the distribution of their
+ * latency. Run them through BenchmarkRunner to also get the allocation rate.
+ * Each insert and remove is undone right after it, outside the measured time, so every call
+ * changes the loaded tree and none finds its change already made. The undo runs on the
+ * measuring thread, so the allocation per insert or remove reported by the gc profiler
+ * includes it.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AVLTreeBenchmark {
+
+    /**
+     * A key that is not in the tree, with the fields of its record, inserted by one call of
+     * insert and removed again after it.
+     */
+    @State(Scope.Thread)
+    public static class NewKey {
+        int key;
+        char[][] sFields;
+        int[] iFields;
+
+        @Setup(Level.Invocation)
+        public void pick(TreeState s) {
+            key = 2 * s.nextPosition() + 1;
+            sFields = s.schema.stringFields(key);
+            iFields = s.schema.intFields(key);
+        }
+
+        @TearDown(Level.Invocation)
+        public void undo(TreeState s) throws IOException {
+            s.tree.remove(key);
+        }
+    }
+
+    /**
+     * A key in the tree, removed by one call of remove and put back after it.
+     */
+    @State(Scope.Thread)
+    public static class OldKey {
+        int key;
+
+        @Setup(Level.Invocation)
+        public void pick(TreeState s) {
+            key = 2 * s.nextPosition();
+        }
+
+        @TearDown(Level.Invocation)
+        public void undo(TreeState s) throws IOException {
+            s.tree.insert(key, s.schema.stringFields(key), s.schema.intFields(key));
+        }
+    }
+
+    @Benchmark
+    public void insert(TreeState s, NewKey k) throws IOException {
+        s.tree.insert(k.key, k.sFields, k.iFields);
+    }
+
+    @Benchmark
+    public void remove(TreeState s, OldKey k) throws IOException {
+        s.tree.remove(k.key);
+    }
+
+    @Benchmark
+    public LinkedList<String> stringFind(TreeState s) throws IOException {
+        return s.tree.stringFind(2 * s.nextPosition());
+    }
+
+    @Benchmark
+    public LinkedList<Integer> intFind(TreeState s) throws IOException {
+        return s.tree.intFind(2 * s.nextPosition());
+    }
+
+    /**
+     * Looks for keys that are not in the tree, which always walks to a leaf.
+     */
+    @Benchmark
+    public LinkedList<Integer> intFindMissing(TreeState s) throws IOException {
+        return s.tree.intFind(2 * s.nextPosition() + 1);
+    }
+
+    /**
+     * Visits every record in key order.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void traverse(TreeState s, Blackhole bh) throws IOException {
+        s.tree.traverse(bh::consume);
+    }
+}
@@ -0,0 +1,28 @@
+package avltree.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Runs the benchmarks with the usual JMH command line, adding the GC profiler for the
+ * allocation rate and writing the results to jmh-result.json, to be compared with a baseline.
+ * For example, to measure lookups on a million keys:
+ *   java -jar benchmarks/target/benchmarks.jar Find -p size=1000000
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(cmd);
+        if (cmd.getProfilers().isEmpty())
+            options.addProfiler(GCProfiler.class);
+        if (!cmd.getResult().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+            options.result("jmh-result.json");
+        }
+        new Runner(options.build()).run();
+    }
+}
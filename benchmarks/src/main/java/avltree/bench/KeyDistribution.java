@@ -0,0 +1,94 @@
+package avltree.bench;
+
+import java.util.Random;
+
+/*
+ * The orders in which the benchmarks pick keys. Each distribution gives positions in [0, n),
+ * which the benchmarks turn into keys of the loaded tree or gaps between them.
+ */
+public enum KeyDistribution {
+    /** positions 0, 1, 2, ... in turn, wrapping at n */
+    SEQUENTIAL {
+        int[] positions(int n, int count, long seed) {
+            int[] p = new int[count];
+            for (int i = 0; i < count; i++)
+                p[i] = i % n;
+            return p;
+        }
+    },
+    /** positions drawn uniformly */
+    RANDOM {
+        int[] positions(int n, int count, long seed) {
+            Random r = new Random(seed);
+            int[] p = new int[count];
+            for (int i = 0; i < count; i++)
+                p[i] = r.nextInt(n);
+            return p;
+        }
+    },
+    /** a few hot positions scattered over the range, drawn with a Zipfian skew of 0.99 */
+    ZIPFIAN {
+        int[] positions(int n, int count, long seed) {
+            Zipfian z = new Zipfian(n, 0.99);
+            Random r = new Random(seed);
+            int[] p = new int[count];
+            for (int i = 0; i < count; i++)
+                p[i] = (int) Long.remainderUnsigned(fnv(z.next(r)), n);
+            return p;
+        }
+    };
+
+    /**
+     * Draws positions ahead of time, so picking keys costs nothing while measuring.
+     * @param n the number of positions
+     * @param count the number of positions to draw
+     * @param seed the seed of the draw
+     * @return the positions in the order they are used
+     */
+    abstract int[] positions(int n, int count, long seed);
+
+    //the 64 bit FNV-1a hash of v, used to scatter the hot ranks of the Zipfian draw
+    private static long fnv(long v) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < 8; i++) {
+            h ^= v & 0xFF;
+            h *= 0x100000001B3L;
+            v >>>= 8;
+        }
+        return h;
+    }
+
+    /*
+     * Ranks 0 to n - 1 where rank i is drawn in proportion to 1 / (i + 1)^theta,
+     * using the method of Gray et al., "Quickly Generating Billion-Record Synthetic Databases".
+     */
+    private static class Zipfian {
+        private final int n;
+        private final double theta;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+
+        private Zipfian(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            double zeta = 0;
+            for (int i = 1; i <= n; i++)
+                zeta += 1 / Math.pow(i, theta);
+            zetaN = zeta;
+            alpha = 1 / (1 - theta);
+            double zeta2 = 1 + 1 / Math.pow(2, theta);
+            eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetaN);
+        }
+
+        private long next(Random r) {
+            double u = r.nextDouble();
+            double uz = u * zetaN;
+            if (uz < 1)
+                return 0;
+            if (uz < 1 + Math.pow(0.5, theta))
+                return 1;
+            return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package avltree.bench;
+
+/*
+ * The record layouts the benchmarks use: the lengths of the char fields and the number of int fields.
+ */
+public enum Schema {
+    /** the key alone */
+    KEY_ONLY(new int[] {}, 0),
+    /** one short name and one number, a 33 byte record in a version 2 file */
+    SMALL(new int[] {10}, 1),
+    /** several text fields and numbers, a 114 byte record in a version 2 file */
+    WIDE(new int[] {10, 20, 40}, 4);
+
+    private final int[] fieldLengths;
+    private final int numIntFields;
+
+    Schema(int[] fieldLengths, int numIntFields) {
+        this.fieldLengths = fieldLengths;
+        this.numIntFields = numIntFields;
+    }
+
+    /**
+     * @return the length of each char field
+     */
+    public int[] fieldLengths() {
+        return fieldLengths.clone();
+    }
+
+    /**
+     * @return the number of int fields
+     */
+    public int numIntFields() {
+        return numIntFields;
+    }
+
+    /**
+     * @param k a key
+     * @return char fields derived from k, null ('\0') padded to their lengths
+     */
+    public char[][] stringFields(int k) {
+        char[][] fields = new char[fieldLengths.length][];
+        char[] digits = Integer.toString(k).toCharArray();
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = new char[fieldLengths[i]];
+            System.arraycopy(digits, 0, fields[i], 0, Math.min(digits.length, fieldLengths[i]));
+        }
+        return fields;
+    }
+
+    /**
+     * @param k a key
+     * @return int fields derived from k
+     */
+    public int[] intFields(int k) {
+        int[] fields = new int[numIntFields];
+        for (int i = 0; i < numIntFields; i++)
+            fields[i] = k + i;
+        return fields;
+    }
+}
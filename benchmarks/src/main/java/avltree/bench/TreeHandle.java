@@ -0,0 +1,56 @@
+package avltree.bench;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.function.Consumer;
+
+/*
+ * The operations of an AVLTree the benchmarks use. AVLTree lives in the default package,
+ * which classes in a package cannot name, and JMH needs its benchmarks in a package, so the
+ * benchmarks reach the tree through this interface, implemented by AVLTreeHandle.
+ */
+public interface TreeHandle extends AutoCloseable {
+    /**
+     * @return a handle on a tree of the default package's AVLTree class
+     */
+    static TreeHandle create() {
+        try {
+            return (TreeHandle) Class.forName("AVLTreeHandle").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("AVLTreeHandle is missing from the class path", e);
+        }
+    }
+
+    /**
+     * Creates the file and bulk loads it with the keys 0, 2, 4, ... 2 * (size - 1), then closes it.
+     * @param file the tree file
+     * @param schema the record layout
+     * @param size the number of keys
+     * @throws IOException
+     */
+    void load(String file, Schema schema, int size) throws IOException;
+
+    /**
+     * Opens an existing tree file.
+     * @param file the tree file
+     * @throws IOException
+     */
+    void open(String file) throws IOException;
+
+    void insert(int k, char[][] sFields, int[] iFields) throws IOException;
+
+    void remove(int k) throws IOException;
+
+    LinkedList<String> stringFind(int k) throws IOException;
+
+    LinkedList<Integer> intFind(int k) throws IOException;
+
+    /**
+     * Hands every record to visitor in key order.
+     * @param visitor what is done with each record
+     * @throws IOException
+     */
+    void traverse(Consumer<Object> visitor) throws IOException;
+
+    void close() throws IOException;
+}
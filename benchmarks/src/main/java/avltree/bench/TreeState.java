@@ -0,0 +1,61 @@
+package avltree.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * A tree file bulk loaded with the keys 0, 2, 4, ... 2 * (size - 1), and the positions the
+ * benchmarks visit. Position p stands for the key 2 * p, which is in the tree, or 2 * p + 1,
+ * which is not. Each benchmark method gets its own fresh tree.
+ */
+@State(Scope.Benchmark)
+public class TreeState {
+    /** the number of keys loaded */
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    @Param({"SEQUENTIAL", "RANDOM", "ZIPFIAN"})
+    public KeyDistribution distribution;
+
+    @Param({"SMALL", "KEY_ONLY", "WIDE"})
+    public Schema schema;
+
+    /** the number of positions drawn ahead of time, used over and over */
+    static final int POSITIONS = 1 << 20;
+
+    Path dir;
+    TreeHandle tree;
+    int[] positions;
+    int next;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        dir = Files.createTempDirectory("avltree-bench");
+        String file = dir.resolve("tree").toString();
+        tree = TreeHandle.create();
+        tree.load(file, schema, size);
+        //reopening starts from a cold tree, the way a restarted process would
+        tree.open(file);
+        positions = distribution.positions(size, POSITIONS, 42);
+    }
+
+    /**
+     * @return the next position to visit
+     */
+    int nextPosition() {
+        int p = positions[next];
+        next = (next + 1) & (POSITIONS - 1);
+        return p;
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        tree.close();
+        for (File f : dir.toFile().listFiles())
+            f.delete();
+        Files.delete(dir);
+    }
+}
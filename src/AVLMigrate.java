@@ -0,0 +1,17 @@
+import java.io.*;
+
+/*
+ * Converts an AVLTree file written in an older format to the current one.
+ * usage: java AVLMigrate oldFile newFile
+ */
+public class AVLMigrate {
+
+    public static void main(String args[]) throws IOException {
+        if (args.length != 2) {
+            System.out.println("usage: java AVLMigrate oldFile newFile");
+            return;
+        }
+        AVLTree.migrate(args[0], args[1]);
+        System.out.println("Migrated " + args[0] + " to " + args[1]);
+    }
+}
@@ -1,5 +1,7 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 public class AVLTest {
 
     public AVLTest() {
@@ -189,7 +191,832 @@ public class AVLTest {
         a.close();
     }
 
-    public static void main(String args[]) throws IOException {
+    public void test5() throws IOException {
+        //checks that find() allocates nothing once warmed up, with and without the node cache and the top levels in memory
+        System.out.println("Start test 5");
+        int testSize = 5000;
+        int sFieldLens[] = {10, 20};
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        for (int cacheSize : new int[] {0, 100}) {
+            for (int levels : new int[] {0, 12}) {
+                AVLTree a = new AVLTree("t5", sFieldLens, 2, new AVLTree.Options().cacheSize(cacheSize).topLevels(levels));
+                fill(a, sFieldLens, 2, 0, 2 * testSize, 2);
+                AVLTree.RecordView view = a.newRecordView();
+                int found = 0;
+                //warm up so the lookups are compiled and the cache is full
+                for (int i = 0; i < 200000; i++)
+                    if (a.find(i % (2 * testSize), view)) found++;
+                long before = bean.getThreadAllocatedBytes(id);
+                for (int i = 0; i < 100000; i++)
+                    if (a.find(i % (2 * testSize), view)) found++;
+                long allocated = bean.getThreadAllocatedBytes(id) - before;
+                System.out.println("cache " + cacheSize + ", " + levels + " top levels: " + found + " found, " + allocated + " bytes allocated by 100000 lookups");
+                a.close();
+                if (allocated > 1000)
+                    throw new AssertionError("test 5: find() allocated " + allocated + " bytes in steady state");
+            }
+        }
+    }
+
+    public void test6() throws IOException, InterruptedException {
+        //readers look keys up on many threads while one writer inserts and removes other keys.
+        //every record found must match its key, then read throughput is timed for 1 to 32 threads
+        System.out.println("Start test 6");
+        int testSize = 10000;
+        int sFieldLens[] = {10, 20};
+        AVLTree a = new AVLTree("t6", sFieldLens, 2, new AVLTree.Options().cacheSize(1000));
+        fill(a, sFieldLens, 2, 0, testSize, 2);
+
+        java.util.concurrent.atomic.AtomicBoolean running = new java.util.concurrent.atomic.AtomicBoolean(true);
+        java.util.concurrent.atomic.AtomicLong errors = new java.util.concurrent.atomic.AtomicLong();
+        java.util.concurrent.atomic.AtomicLong lookups = new java.util.concurrent.atomic.AtomicLong();
+        AVLTree tree = a;
+        Thread writer = new Thread(() -> {
+            Random r = new Random(6);
+            try {
+                while (running.get()) {
+                    int k = 2 * r.nextInt(testSize / 2) + 1;
+                    if (r.nextBoolean())
+                        insert(tree, k, sFieldLens, 2);
+                    else
+                        tree.remove(k);
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+            }
+        });
+        Thread readers[] = new Thread[8];
+        for (int t = 0; t < readers.length; t++) {
+            int seed = t;
+            readers[t] = new Thread(() -> {
+                Random r = new Random(seed);
+                AVLTree.RecordView view = tree.newRecordView();
+                try {
+                    while (running.get()) {
+                        int k = r.nextInt(testSize);
+                        boolean found = tree.find(k, view);
+                        //even keys are never removed
+                        if ((k % 2 == 0 && !found) || (found && (view.getIntField(0) != k
+                                || !view.getStringField(1).toString().equals(Integer.toString(k)))))
+                            errors.incrementAndGet();
+                        LinkedList<Integer> nums = tree.intFind(k);
+                        if (nums != null && nums.get(1) != k)
+                            errors.incrementAndGet();
+                        lookups.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+            });
+        }
+        writer.start();
+        for (Thread t : readers)
+            t.start();
+        Thread.sleep(2000);
+        running.set(false);
+        writer.join();
+        for (Thread t : readers)
+            t.join();
+        System.out.println("Mixed run: " + lookups.get() + " lookups, " + errors.get() + " errors");
+        check(errors.get(), "test 6");
+
+        //read only throughput
+        for (int threads = 1; threads <= 32; threads *= 2) {
+            java.util.concurrent.atomic.AtomicBoolean timing = new java.util.concurrent.atomic.AtomicBoolean(true);
+            java.util.concurrent.atomic.AtomicLong count = new java.util.concurrent.atomic.AtomicLong();
+            Thread workers[] = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int seed = t;
+                workers[t] = new Thread(() -> {
+                    Random r = new Random(seed);
+                    AVLTree.RecordView view = tree.newRecordView();
+                    long done = 0;
+                    try {
+                        while (timing.get()) {
+                            tree.find(r.nextInt(testSize), view);
+                            done++;
+                        }
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                    count.addAndGet(done);
+                });
+            }
+            for (Thread t : workers)
+                t.start();
+            Thread.sleep(1000);
+            timing.set(false);
+            for (Thread t : workers)
+                t.join();
+            System.out.println(threads + " reader threads: " + count.get() + " lookups/s");
+        }
+        a.close();
+        check(errors.get(), "test 6");
+    }
+
+    public void test7() throws IOException, InterruptedException {
+        //copy-on-write snapshots keep seeing the version they were taken on
+        System.out.println("Start test 7");
+        int testSize = 10000;
+        int sFieldLens[] = {10, 20};
+        AVLTree a = new AVLTree("t7", sFieldLens, 2, new AVLTree.Options().copyOnWrite(true));
+        fill(a, sFieldLens, 2, 0, testSize, 2);
+
+        AVLTree.Snapshot snap = a.snapshot();
+        for (int i = 0; i < testSize; i += 4)
+            a.remove(i);
+        fill(a, sFieldLens, 2, 1, testSize, 2);
+        int expected = 0, errors = 0;
+        AVLTree.Cursor old = snap.scan(0, testSize, false);
+        while (old.hasNext()) {
+            if (old.next().getKey() != expected)
+                errors++;
+            expected += 2;
+        }
+        if (expected != testSize)
+            errors++;
+        snap.close();
+        int count = 0;
+        AVLTree.Cursor now = a.scan(0, testSize);
+        while (now.hasNext())
+            if (now.next().getKey() % 4 == 0)
+                errors++;
+            else
+                count++;
+        System.out.println("Snapshot kept " + expected / 2 + " keys, tree now has " + count + ", " + errors + " errors");
+        check(errors, "test 7");
+
+        //with every snapshot closed the replaced nodes are reused, so churn does not grow the file
+        long before = a.f.length();
+        Random r = new Random(7);
+        for (int i = 0; i < 5000; i++) {
+            int k = 4 * r.nextInt(testSize / 4);
+            if (a.intFind(k) == null)
+                insert(a, k, sFieldLens, 2);
+            else
+                a.remove(k);
+        }
+        System.out.println("File grew " + (a.f.length() - before) + " bytes over 5000 changes");
+
+        //a writer keeps going while readers scan the whole tree
+        java.util.concurrent.atomic.AtomicBoolean running = new java.util.concurrent.atomic.AtomicBoolean(true);
+        java.util.concurrent.atomic.AtomicLong scans = new java.util.concurrent.atomic.AtomicLong();
+        AVLTree tree = a;
+        Thread readers[] = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        try (AVLTree.Snapshot s = tree.snapshot()) {
+                            AVLTree.Cursor c = s.scan(0, testSize, false);
+                            while (c.hasNext())
+                                c.next();
+                        }
+                        scans.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            readers[t].start();
+        }
+        long changes = 0;
+        long end = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < end) {
+            int k = 4 * r.nextInt(testSize / 4);
+            insert(a, k, sFieldLens, 2);
+            a.remove(k);
+            changes += 2;
+        }
+        running.set(false);
+        for (Thread t : readers)
+            t.join();
+        System.out.println("Writer made " + changes + " changes during " + scans.get() + " full scans");
+        a.close();
+    }
+
+    public void test8() throws IOException, InterruptedException {
+        //writer threads share forces of the write-ahead log, and a copy of the files taken
+        //without closing the tree, as a crash would leave them, still holds every insert
+        System.out.println("Start test 8");
+        int sFieldLens[] = {10, 20};
+        for (int threads = 1; threads <= 16; threads *= 4) {
+            AVLTree a = new AVLTree("t8", sFieldLens, 2, new AVLTree.Options().writeAheadLog(true));
+            int perThread = 2000;
+            int numThreads = threads;
+            Thread writers[] = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int first = t;
+                writers[t] = new Thread(() -> {
+                    try {
+                        fill(a, sFieldLens, 2, first, perThread * numThreads, numThreads);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            for (Thread t : writers)
+                t.start();
+            for (Thread t : writers)
+                t.join();
+            long time = System.nanoTime() - start;
+            System.out.println(threads + " writer threads: " + perThread * threads * 1000000000L / time + " durable inserts/s");
+
+            java.nio.file.Files.copy(new File("t8").toPath(), new File("t8crash").toPath(),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            java.nio.file.Files.copy(new File("t8.wal").toPath(), new File("t8crash.wal").toPath(),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            a.close();
+            AVLTree b = new AVLTree("t8crash");
+            int missing = 0;
+            for (int k = 0; k < perThread * threads; k++)
+                if (b.intFind(k) == null)
+                    missing++;
+            System.out.println("After replaying the log: " + missing + " inserts missing");
+            b.close();
+            check(missing, "test 8");
+        }
+    }
+
+    public void test9() throws IOException {
+        //compaction drops the space freed by churn and keeps every record
+        System.out.println("Start test 9");
+        int testSize = 20000;
+        int sFieldLens[] = {10, 20};
+        AVLTree a = new AVLTree("t9", sFieldLens, 2);
+        Random r = new Random(9);
+        boolean present[] = new boolean[testSize];
+        for (int i = 0; i < 3 * testSize; i++) {
+            int k = r.nextInt(testSize);
+            if (present[k] && i > testSize) {
+                a.remove(k);
+                present[k] = false;
+            } else {
+                insert(a, k, sFieldLens, 2);
+                present[k] = true;
+            }
+        }
+        long before = a.f.length();
+        long start = System.nanoTime();
+        a.compact();
+        long time = System.nanoTime() - start;
+        int errors = 0;
+        for (int k = 0; k < testSize; k++) {
+            LinkedList<Integer> nums = a.intFind(k);
+            if ((nums != null) != present[k] || (nums != null && nums.get(0) != k))
+                errors++;
+        }
+        System.out.println("Compacted " + before + " bytes to " + a.f.length() + " in "
+                + time / 1000000 + " ms, " + errors + " errors");
+        a.close();
+        check(errors, "test 9");
+    }
+
+    public void test10() throws IOException {
+        //a paged tree keeps small subtrees in one page, so a lookup reads few pages
+        System.out.println("Start test 10");
+        int testSize = 100000;
+        int sFieldLens[] = {10, 20};
+        AVLTree a = new AVLTree("t10", sFieldLens, 2, new AVLTree.Options().pageSize(4096).pagePool(64));
+        int keys[] = fillRandom(a, sFieldLens, 2, new Random(10), testSize, 0);
+        a.close();
+        a = new AVLTree("t10", new AVLTree.Options().pagePool(64));
+        int errors = 0;
+        long reads = a.pages.getPageReads();
+        for (int i = 0; i < testSize; i++) {
+            LinkedList<Integer> nums = a.intFind(keys[i]);
+            if (nums == null || nums.get(0) != keys[i])
+                errors++;
+        }
+        System.out.println("Paged file of " + a.f.length() + " bytes, "
+                + (double) (a.pages.getPageReads() - reads) / testSize + " page reads per lookup, " + errors + " errors");
+        a.compact();
+        reads = a.pages.getPageReads();
+        for (int i = 0; i < testSize; i++)
+            if (a.intFind(keys[i]) == null)
+                errors++;
+        System.out.println("Compacted to " + a.f.length() + " bytes, "
+                + (double) (a.pages.getPageReads() - reads) / testSize + " page reads per lookup, " + errors + " errors");
+        a.close();
+        check(errors, "test 10");
+    }
+
+    public void test11() throws IOException, InterruptedException {
+        //with the top levels in memory only the levels below them are read from the file
+        System.out.println("Start test 11");
+        int testSize = 200000;
+        int sFieldLens[] = {10};
+        AVLTree a = new AVLTree("t11", sFieldLens, 1);
+        ArrayList<AVLTree.Record> records = new ArrayList<>();
+        for (int k = 0; k < testSize; k++)
+            records.add(new AVLTree.Record(k, stringFields(k, sFieldLens), intFields(k, 1)));
+        a.bulkLoad(testSize, records.iterator());
+        a.close();
+        for (int levels : new int[] {0, 12}) {
+            a = new AVLTree("t11", new AVLTree.Options().topLevels(levels));
+            //let the warm-up finish
+            Thread.sleep(500);
+            Random r = new Random(11);
+            int errors = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < testSize; i++) {
+                int k = r.nextInt(testSize);
+                LinkedList<Integer> nums = a.intFind(k);
+                if (nums == null || nums.get(0) != k)
+                    errors++;
+            }
+            long time = System.nanoTime() - start;
+            System.out.println(levels + " levels in memory: " + testSize + " lookups in " + time / 1000000 + " ms, " + errors + " errors");
+            a.close();
+            check(errors, "test 11");
+        }
+    }
+
+    public void test12() throws Exception {
+        //every tree counts its I/O, rotations and allocations and times its operations
+        System.out.println("Start test 12");
+        int testSize = 50000;
+        int sFieldLens[] = {10};
+        AVLTree a = new AVLTree("t12", sFieldLens, 1);
+        Random r = new Random(12);
+        fillRandom(a, sFieldLens, 1, r, testSize, testSize);
+        for (int i = 0; i < testSize / 2; i++)
+            a.remove(r.nextInt(testSize));
+        for (int i = 0; i < testSize; i++)
+            a.intFind(r.nextInt(testSize));
+        System.out.println(a.getStats());
+        //the same numbers are live in JMX while the tree is open
+        javax.management.ObjectName name = new javax.management.ObjectName("AVLTree:type=Tree,file=\"t12\"");
+        System.out.println("JMX node reads: " + ManagementFactory.getPlatformMBeanServer().getAttribute(name, "NodeReads"));
+        a.close();
+    }
+
+    public void test13() throws IOException {
+        //an index on an int field finds records by that field without walking the whole tree
+        System.out.println("Start test 13");
+        int testSize = 100000;
+        int lookups = 20;
+        int sFieldLens[] = {10};
+        AVLTree a = new AVLTree("t13", sFieldLens, 2);
+        ArrayList<AVLTree.Record> records = new ArrayList<>();
+        for (int k = 0; k < testSize; k++)
+            records.add(new AVLTree.Record(k, stringFields(k, sFieldLens), new int[] {k % 5000, k}));
+        a.bulkLoad(testSize, records.iterator());
+        for (boolean indexed : new boolean[] {false, true}) {
+            if (indexed)
+                a.createIndex(0);
+            Random r = new Random(13);
+            int errors = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                int v = r.nextInt(5000);
+                for (AVLTree.Record rec : a.findByIntField(0, v))
+                    if (rec.getKey() % 5000 != v)
+                        errors++;
+                if (a.findByIntField(0, v).size() != testSize / 5000)
+                    errors++;
+            }
+            long time = System.nanoTime() - start;
+            System.out.println((indexed ? "With" : "Without") + " an index: " + 2 * lookups + " lookups in " + time / 1000000 + " ms, " + errors + " errors");
+            check(errors, "test 13");
+        }
+        //the index follows removes and survives reopening
+        for (int k = 0; k < testSize; k += 2)
+            a.remove(k);
+        a.close();
+        a = new AVLTree("t13");
+        System.out.println("After removing the even keys: " + a.findByIntField(0, 1).size() + " records with value 1, "
+                + a.findByIntField(0, 2).size() + " with value 2, " + a.findByIntField(0, 0, 9).size() + " with values 0 to 9");
+        //each odd value is left on testSize / 5000 records
+        int wrong = 0;
+        if (a.findByIntField(0, 1).size() != testSize / 5000 || a.findByIntField(0, 2).size() != 0
+                || a.findByIntField(0, 0, 9).size() != 5 * testSize / 5000)
+            wrong++;
+        //an index left as if by a crash, open and with a lost values tree, is built again on opening
+        a.close();
+        try (RandomAccessFile state = new RandomAccessFile("t13.idx0.state", "rw");
+             RandomAccessFile values = new RandomAccessFile("t13.idx0", "rw")) {
+            state.writeInt(0);
+            values.setLength(0);
+        }
+        a = new AVLTree("t13");
+        System.out.println("After a crash: " + a.findByIntField(0, 1).size() + " records with value 1, "
+                + a.findByIntField(0, 2).size() + " with value 2, " + a.findByIntField(0, 0, 9).size() + " with values 0 to 9");
+        if (a.findByIntField(0, 1).size() != testSize / 5000 || a.findByIntField(0, 2).size() != 0
+                || a.findByIntField(0, 0, 9).size() != 5 * testSize / 5000)
+            wrong++;
+        a.close();
+        check(wrong, "test 13");
+    }
+
+    public void test14() throws IOException {
+        //with subtree sizes, positions and range counts take one walk down the tree
+        System.out.println("Start test 14");
+        int testSize = 100000;
+        int sFieldLens[] = {10};
+        AVLTree a = new AVLTree("t14", sFieldLens, 1, new AVLTree.Options().orderStatistics(true));
+        TreeSet<Integer> keys = new TreeSet<>();
+        Random r = new Random(14);
+        for (int i = 0; i < testSize; i++) {
+            int k = r.nextInt(10 * testSize);
+            insert(a, k, sFieldLens, 1);
+            keys.add(k);
+            if (r.nextInt(4) == 0) {
+                int gone = r.nextInt(10 * testSize);
+                a.remove(gone);
+                keys.remove(gone);
+            }
+        }
+        Integer sorted[] = keys.toArray(new Integer[0]);
+        int errors = 0;
+        long reads = a.getStats().getNodeReads();
+        for (int i = 0; i < 1000; i++) {
+            int lo = r.nextInt(10 * testSize), hi = lo + r.nextInt(testSize);
+            if (a.countRange(lo, hi) != keys.subSet(lo, true, hi, true).size())
+                errors++;
+            int pos = r.nextInt(sorted.length);
+            if (a.select(pos) != sorted[pos] || a.rank(sorted[pos]) != pos)
+                errors++;
+        }
+        System.out.println(keys.size() + " keys, " + (a.getStats().getNodeReads() - reads) / 4000.0
+                + " node reads per rank, select or count, " + errors + " errors");
+        a.close();
+        check(errors, "test 14");
+    }
+
+    public void test15() throws IOException {
+        //with subtree aggregates a range sum, minimum and maximum take a few walks down the tree
+        System.out.println("Start test 15");
+        int testSize = 100000;
+        int sFieldLens[] = {10};
+        int iFields[] = new int[2];
+        AVLTree a = new AVLTree("t15", sFieldLens, 2, new AVLTree.Options().aggregates(1));
+        TreeMap<Integer, Integer> values = new TreeMap<>();
+        Random r = new Random(15);
+        for (int i = 0; i < testSize; i++) {
+            int k = r.nextInt(10 * testSize);
+            iFields[0] = k;
+            iFields[1] = r.nextInt(2000) - 1000;
+            a.insert(k, stringFields(k, sFieldLens), iFields);
+            values.putIfAbsent(k, iFields[1]);
+            if (r.nextInt(4) == 0) {
+                int gone = r.nextInt(10 * testSize);
+                a.remove(gone);
+                values.remove(gone);
+            }
+        }
+        int errors = 0;
+        long reads = a.getStats().getNodeReads();
+        for (int i = 0; i < 1000; i++) {
+            int lo = r.nextInt(10 * testSize), hi = lo + r.nextInt(5 * testSize);
+            long sum = 0;
+            int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+            for (int v : values.subMap(lo, true, hi, true).values()) {
+                sum += v;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            AVLTree.Aggregate agg = a.aggregate(lo, hi, 1);
+            if (agg.getSum() != sum || agg.getMin() != min || agg.getMax() != max)
+                errors++;
+        }
+        System.out.println(values.size() + " keys, " + (a.getStats().getNodeReads() - reads) / 1000.0
+                + " node reads per aggregate, " + errors + " errors");
+        a.close();
+        check(errors, "test 15");
+    }
+
+    public void test16() throws IOException {
+        //a sharded tree runs the shards of a batch on separate threads
+        System.out.println("Start test 16");
+        int testSize = 200000;
+        int batchSize = 10000;
+        int sFieldLens[] = {10};
+        Random r = new Random(16);
+        int keys[] = new int[testSize];
+        for (int i = 0; i < testSize; i++)
+            keys[i] = r.nextInt();
+        for (int numShards : new int[] {1, 4}) {
+            ShardedAVLTree a = new ShardedAVLTree("t16", sFieldLens, 1, numShards, new AVLTree.Options());
+            long start = System.nanoTime();
+            for (int from = 0; from < testSize; from += batchSize) {
+                ArrayList<AVLTree.Record> batch = new ArrayList<>();
+                for (int i = from; i < from + batchSize; i++)
+                    batch.add(new AVLTree.Record(keys[i], stringFields(keys[i], sFieldLens), intFields(keys[i], 1)));
+                a.insertBatch(batch);
+            }
+            long time = System.nanoTime() - start;
+            int errors = 0;
+            List<LinkedList<Integer>> found = a.intFindBatch(keys);
+            for (int i = 0; i < testSize; i++)
+                if (found.get(i) == null || found.get(i).get(0) != keys[i])
+                    errors++;
+            //the merged scan comes out in key order
+            int last = Integer.MIN_VALUE, count = 0;
+            for (Iterator<AVLTree.Record> it = a.scan(Integer.MIN_VALUE, Integer.MAX_VALUE); it.hasNext(); count++) {
+                int k = it.next().getKey();
+                if (count > 0 && k <= last)
+                    errors++;
+                last = k;
+            }
+            System.out.println(numShards + " shards: " + testSize + " inserts in " + time / 1000000 + " ms, "
+                    + count + " records scanned, " + errors + " errors");
+            a.close();
+            check(errors, "test 16");
+        }
+    }
+
+    public void test17() throws IOException {
+        //a full pass split over the fork/join pool sees every record once, as a sequential scan does
+        System.out.println("Start test 17");
+        int testSize = 200000;
+        int sFieldLens[] = {10};
+        AVLTree a = new AVLTree("t17", sFieldLens, 1, new AVLTree.Options().orderStatistics(true));
+        fillRandom(a, sFieldLens, 1, new Random(17), testSize, 0);
+        long start = System.nanoTime();
+        long sum = 0;
+        int count = 0;
+        for (AVLTree.Cursor c = a.scan(Integer.MIN_VALUE, Integer.MAX_VALUE); c.hasNext(); count++)
+            sum += c.next().getIntFields()[0];
+        long time = System.nanoTime() - start;
+        start = System.nanoTime();
+        java.util.concurrent.atomic.LongAdder parallelSum = new java.util.concurrent.atomic.LongAdder();
+        java.util.concurrent.atomic.LongAdder parallelCount = new java.util.concurrent.atomic.LongAdder();
+        a.forEachParallel(rec -> {
+            parallelSum.add(rec.getIntFields()[0]);
+            parallelCount.increment();
+        });
+        long parallelTime = System.nanoTime() - start;
+        //a parallel stream keeps the key order when asked to
+        List<Integer> streamed = java.util.stream.StreamSupport.stream(a.spliterator(), true)
+                .map(AVLTree.Record::getKey).collect(java.util.stream.Collectors.toList());
+        int errors = 0;
+        if (parallelSum.sum() != sum || parallelCount.sum() != count || streamed.size() != count)
+            errors++;
+        for (int i = 1; i < streamed.size(); i++)
+            if (streamed.get(i) <= streamed.get(i - 1))
+                errors++;
+        //a spliterator stepped after the tree changed fails rather than reading nodes that may be gone
+        Spliterator<AVLTree.Record> parts = a.spliterator();
+        parts.tryAdvance(rec -> { });
+        a.remove(streamed.get(streamed.size() / 2));
+        try {
+            parts.tryAdvance(rec -> { });
+            errors++;
+        } catch (ConcurrentModificationException e) {
+        }
+        //a pass may look keys up, but a change from inside it fails rather than waiting for the pass
+        java.util.concurrent.atomic.LongAdder missing = new java.util.concurrent.atomic.LongAdder();
+        a.forEachParallel(rec -> {
+            try {
+                if (a.intFind(rec.getKey()) == null)
+                    missing.increment();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        if (missing.sum() != 0)
+            errors++;
+        try {
+            a.forEachParallel(rec -> {
+                try {
+                    a.remove(rec.getKey());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            errors++;
+        } catch (IllegalStateException e) {
+        }
+        if (a.countRange(Integer.MIN_VALUE, Integer.MAX_VALUE) != count - 1)
+            errors++;
+        System.out.println(count + " records, sequential scan " + time / 1000000 + " ms, forEachParallel "
+                + parallelTime / 1000000 + " ms on " + ForkJoinPool.commonPool().getParallelism() + " workers, "
+                + errors + " errors");
+        a.close();
+        check(errors, "test 17");
+    }
+
+    public void test18() throws Exception {
+        //concurrent lookups of the same hot keys share one descent each, and a full queue turns work away
+        System.out.println("Start test 18");
+        int testSize = 100000;
+        int requests = 20000;
+        int sFieldLens[] = {10};
+        AVLTree a = new AVLTree("t18", sFieldLens, 1, new AVLTree.Options());
+        fill(a, sFieldLens, 1, 0, testSize, 1);
+        AsyncAVLTree async = new AsyncAVLTree(a, 4, requests);
+        long lookups = a.getStats().getOperations().get("intFind").getCount();
+        Random r = new Random(18);
+        ArrayList<java.util.concurrent.CompletableFuture<LinkedList<Integer>>> found = new ArrayList<>();
+        int keys[] = new int[requests];
+        for (int i = 0; i < requests; i++) {
+            keys[i] = r.nextInt(10);
+            found.add(async.intFind(keys[i]));
+        }
+        int errors = 0;
+        for (int i = 0; i < requests; i++)
+            if (found.get(i).get().get(0) != keys[i])
+                errors++;
+        System.out.println(requests + " requests for 10 hot keys took " + (a.getStats().getOperations().get("intFind").getCount() - lookups)
+                + " descents, " + async.getCoalesced() + " coalesced, " + errors + " errors");
+        async.close();
+        check(errors, "test 18");
+
+        a = new AVLTree("t18");
+        async = new AsyncAVLTree(a, 1, 10);
+        found.clear();
+        for (int i = 0; i < 1000; i++)
+            found.add(async.intFind(i));
+        int failed = 0;
+        for (java.util.concurrent.CompletableFuture<LinkedList<Integer>> f : found)
+            if (f.isCompletedExceptionally())
+                failed++;
+        System.out.println("1000 distinct requests on one thread with 10 queue slots: " + async.getRejected() + " rejected, "
+                + failed + " failed futures");
+        async.close();
+    }
+
+    public void test19() throws IOException {
+        //with a Bloom filter, lookups of keys that are not in the tree mostly read no nodes
+        System.out.println("Start test 19");
+        int testSize = 100000;
+        int lookups = 100000;
+        int sFieldLens[] = {10};
+        for (int bitsPerKey : new int[] {0, 10}) {
+            AVLTree a = new AVLTree("t19", sFieldLens, 1, new AVLTree.Options().bloomFilter(bitsPerKey));
+            Random r = new Random(19);
+            //the even keys are in the tree
+            for (int i = 0; i < testSize; i++)
+                insert(a, 2 * r.nextInt(10 * testSize), sFieldLens, 1);
+            a.close();
+            a = new AVLTree("t19");
+            //40% of the lookups are for odd keys, which are not
+            long reads = a.getStats().getStorageReads();
+            long start = System.nanoTime();
+            int errors = 0;
+            for (int i = 0; i < lookups; i++) {
+                int k = r.nextInt(5) < 2 ? 2 * r.nextInt(10 * testSize) + 1 : 2 * r.nextInt(10 * testSize);
+                LinkedList<Integer> found = a.intFind(k);
+                if (found != null && (k % 2 != 0 || found.get(0) != k))
+                    errors++;
+            }
+            long time = System.nanoTime() - start;
+            System.out.println((bitsPerKey == 0 ? "no filter" : bitsPerKey + " bits per key") + ": "
+                    + (a.getStats().getStorageReads() - reads) / (double) lookups + " file reads per lookup, "
+                    + a.getStats().getFilterSkips() + " answered by the filter, " + time / 1000000 + " ms, " + errors + " errors");
+            a.close();
+            check(errors, "test 19");
+        }
+    }
+
+    public void test20() throws IOException {
+        //the plain constructors keep the original format and every character, version 2 is asked for
+        System.out.println("Start test 20");
+        int sFieldLens[] = {4};
+        char sFields[][] = {{'\u03b1', 'b', '\0', '\0'}};
+        AVLTree a = new AVLTree("t20", sFieldLens, 1);
+        a.insert(1, sFields, new int[] {1});
+        a.close();
+        a = new AVLTree("t20");
+        boolean kept = a.stringFind(1).get(0).charAt(0) == sFields[0][0];
+        System.out.println("Plain constructor " + (kept ? "kept" : "lost") + " a non-Latin-1 character");
+        a.close();
+        if (!kept)
+            throw new AssertionError("test 20: the original format lost a character");
+        //a tree the new format cannot hold is not migrated, and no partial copy is left behind
+        File copy = new File("t20.v2");
+        copy.delete();
+        try {
+            AVLTree.migrate("t20", copy.getName());
+        } catch (IllegalArgumentException e) {
+        }
+        System.out.println("Migrating it " + (copy.exists() ? "left" : "left no") + " partial copy");
+        a = new AVLTree("t20", sFieldLens, 1, new AVLTree.Options().version(2));
+        String result;
+        try {
+            a.insert(1, sFields, new int[] {1});
+            result = "stored";
+        } catch (IllegalArgumentException e) {
+            result = "rejected";
+        }
+        System.out.println("Version 2 " + result + " a non-Latin-1 character, the tree holds "
+                + (a.intFind(1) == null ? "no" : "a") + " record");
+        boolean held = a.intFind(1) != null;
+        a.close();
+        if (copy.exists() || !result.equals("rejected") || held)
+            throw new AssertionError("test 20: a non-Latin-1 character reached a version 2 file");
+    }
+
+    public void test21() throws IOException {
+        //a cursor finds its place again when the tree changes between its steps
+        System.out.println("Start test 21");
+        int testSize = 20000;
+        int sFieldLens[] = {10};
+        AVLTree a = new AVLTree("t21", sFieldLens, 1);
+        fill(a, sFieldLens, 1, 0, testSize, 1);
+        //each step removes a key ahead of the cursor and inserts one past the end of the tree
+        int errors = 0, count = 0, expected = 0;
+        AVLTree.Cursor c = a.scan(0, Integer.MAX_VALUE);
+        while (c.hasNext()) {
+            AVLTree.Record rec = c.next();
+            if (rec.getKey() != expected || rec.getIntFields()[0] != expected)
+                errors++;
+            //the odd keys are gone before the cursor reaches them, and only even ones are added
+            expected = rec.getKey() + 2;
+            count++;
+            if (rec.getKey() < testSize) {
+                a.remove(rec.getKey() + 1);
+                insert(a, testSize + rec.getKey(), sFieldLens, 1);
+            }
+        }
+        System.out.println("Scanned " + count + " records while changing the tree, " + errors + " errors");
+        a.close();
+        check(errors, "test 21");
+    }
+
+    public void test22() throws Exception {
+        //closing a sharded scan abandoned early releases its copy-on-write pins, so compaction can run
+        System.out.println("Start test 22");
+        int testSize = 20000;
+        int sFieldLens[] = {10};
+        ShardedAVLTree a = new ShardedAVLTree("t22", sFieldLens, 1, 4, new AVLTree.Options().copyOnWrite(true));
+        for (int k = 0; k < testSize; k++)
+            a.insert(k, stringFields(k, sFieldLens), intFields(k, 1));
+        int read = 0;
+        try (ShardedAVLTree.Scan scan = a.scan(0, testSize)) {
+            while (scan.hasNext() && read < 10) {
+                scan.next();
+                read++;
+            }
+        }
+        //a pin left behind would make compact() wait for its reader forever
+        Thread compactor = new Thread(() -> {
+            try {
+                a.compact();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        compactor.setDaemon(true);
+        compactor.start();
+        compactor.join(30000);
+        System.out.println("Read " + read + " records, closed the scan, compaction "
+                + (compactor.isAlive() ? "still waiting after 30 s" : "finished") + ", "
+                + (a.intFind(testSize - 1) == null ? "lost" : "kept") + " the last key");
+        if (compactor.isAlive())
+            throw new AssertionError("test 22: compaction waited on a closed scan");
+        if (a.intFind(testSize - 1) == null)
+            throw new AssertionError("test 22: compaction lost the last key");
+        a.close();
+    }
+
+    //the char fields of the test record with key k, which hold k written out and padded to each length
+    private static char[][] stringFields(int k, int sFieldLens[]) {
+        char sFields[][] = new char[sFieldLens.length][];
+        for (int i = 0; i < sFieldLens.length; i++)
+            sFields[i] = Arrays.copyOf(Integer.toString(k).toCharArray(), sFieldLens[i]);
+        return sFields;
+    }
+
+    //the int fields of the test record with key k, which all hold k
+    private static int[] intFields(int k, int numIntFields) {
+        int iFields[] = new int[numIntFields];
+        Arrays.fill(iFields, k);
+        return iFields;
+    }
+
+    //inserts the test record with key k
+    private static void insert(AVLTree a, int k, int sFieldLens[], int numIntFields) throws IOException {
+        a.insert(k, stringFields(k, sFieldLens), intFields(k, numIntFields));
+    }
+
+    //inserts the test records with the keys from, from + step, from + 2 * step, ... below to
+    private static void fill(AVLTree a, int sFieldLens[], int numIntFields, int from, int to, int step) throws IOException {
+        for (int k = from; k < to; k += step)
+            insert(a, k, sFieldLens, numIntFields);
+    }
+
+    //inserts count test records with keys drawn by r below bound, or from every int if bound is 0,
+    //and returns the keys in the order they were drawn
+    private static int[] fillRandom(AVLTree a, int sFieldLens[], int numIntFields, Random r, int count, int bound) throws IOException {
+        int keys[] = new int[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = bound == 0 ? r.nextInt() : r.nextInt(bound);
+            insert(a, keys[i], sFieldLens, numIntFields);
+        }
+        return keys;
+    }
+
+    //fails the run if a test counted any errors
+    private static void check(long errors, String test) {
+        if (errors != 0)
+            throw new AssertionError(test + " found " + errors + " errors");
+    }
+
+    public static void main(String args[]) throws Exception {
         AVLTest test = new AVLTest();
         Scanner scan = new Scanner(System.in);
         System.out.print("Enter the maximum value to use for tests 1 and 2: ");
@@ -222,6 +1049,42 @@ public class AVLTest {
         test.test3();
         System.out.println("-------------------------------------------");
         test.test4();
+        System.out.println("-------------------------------------------");
+        test.test5();
+        System.out.println("-------------------------------------------");
+        test.test6();
+        System.out.println("-------------------------------------------");
+        test.test7();
+        System.out.println("-------------------------------------------");
+        test.test8();
+        System.out.println("-------------------------------------------");
+        test.test9();
+        System.out.println("-------------------------------------------");
+        test.test10();
+        System.out.println("-------------------------------------------");
+        test.test11();
+        System.out.println("-------------------------------------------");
+        test.test12();
+        System.out.println("-------------------------------------------");
+        test.test13();
+        System.out.println("-------------------------------------------");
+        test.test14();
+        System.out.println("-------------------------------------------");
+        test.test15();
+        System.out.println("-------------------------------------------");
+        test.test16();
+        System.out.println("-------------------------------------------");
+        test.test17();
+        System.out.println("-------------------------------------------");
+        test.test18();
+        System.out.println("-------------------------------------------");
+        test.test19();
+        System.out.println("-------------------------------------------");
+        test.test20();
+        System.out.println("-------------------------------------------");
+        test.test21();
+        System.out.println("-------------------------------------------");
+        test.test22();
     }
 
 }
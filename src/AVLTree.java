@@ -1,5 +1,21 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /*
  * Tanner Turba
@@ -7,14 +23,590 @@ import java.util.*;
  * Implements an AVL tree of ints (the keys) and fixed length character string fields
  * stored in a random access file.
  * Duplicate keys are not allowed. There will be at least 1 character string field.
+ * Lookups and scans may run on many threads at once, inserts and removes run one at a time.
  */
-public class AVLTree {
+public class AVLTree implements AutoCloseable {
     public RandomAccessFile f;
-    private long root; //the address of the root node in the file
+    private volatile long root; //the address of the root node in the file
     private long free; //the address in the file of the first node in the free list
     private int numStringFields; //the number of fixed length character fields
     private int[] fieldLengths; //the length of each character field
     private int numIntFields; //the number of integer fields
+    private static final int LOAD_BLOCK_SIZE = 1 << 20; //bytes bulkLoad() and compact() write at a time
+    private static final int PARALLEL_HEIGHT = 10; //forEachParallel() walks subtrees lower than this on one thread
+    private static final int PAGE_SIZE = 4096; //the disk page compact() groups subtrees into
+    private String fileName; //the name of the tree file
+    private Options options; //the options the tree was opened with
+    private NodeCache cache; //recently used nodes keyed by address, null when caching is off
+    private final TreeStats stats = new TreeStats(); //counters and latencies, see getStats()
+    private ObjectName statsName; //the name the statistics are registered under with JMX, null if they are not
+    private SecondaryIndex[] indexes; //the index on each int field, null where there is none
+    private volatile BloomFilter filter; //the filter over the keys, null if the tree has none
+    private TopNodes topNodes; //the nodes near the root by address, never changed once in, null when off
+    private volatile int topHeight; //the least height of a node kept in topNodes
+    private volatile int warmUps; //counts changes of the file layout, which stop a running warm-up
+    private ThreadLocal<ByteBuffer> recordBuffers; //per thread buffers holding one encoded node
+    private final ThreadLocal<ByteBuffer> wordBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(20)); //per thread buffers for single values and record fronts
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); //lookups share it, changes take it alone
+    private final ThreadLocal<int[]> visits = ThreadLocal.withInitial(() -> new int[1]); //forEachParallel() visits running on each thread
+    private long modCount; //counts changes made under the write lock, which cursors read under the read lock
+    private Storage storage; //where the header and nodes are read from and written to
+    private WalStorage log; //the same storage when the write-ahead log is on, null otherwise
+    private Node[] path = new Node[64]; //the nodes passed through by the current insert or remove
+    private boolean[] wentLeft = new boolean[64]; //whether the walk went left at each node of path
+    private int depth; //the number of nodes on path
+    private final ArrayList<Node> dirtyNodes = new ArrayList<>(); //nodes changed by the current operation
+    private int[] stringOffsets; //the offset of each char field within a record
+    private int intOffset; //the offset of the first int field within a record
+    private int leftOffset; //the offset of the left reference within a record, the right one follows it
+    private int heightOffset; //the offset of the height within a record
+    private int version; //the file format version, see configure() for the record layouts
+    private int charBytes; //the bytes each character of a char field takes up in a record
+    private static final int FLAG_PAGED = 1; //header flag of a paged file, log2 of the page size is in bits 8-15
+    private static final int FLAG_SIZED = 2; //header flag of a file whose nodes store their subtree sizes
+    private boolean sized; //nodes store the number of nodes in their subtree, see Options.orderStatistics()
+    private int sizeOffset; //the offset of the subtree size within a record of a sized file
+    private static final int FLAG_AGGREGATES = 4; //header flag of a file whose nodes store subtree aggregates, the fields follow the header
+    private int[] aggregateFields = new int[0]; //the int fields aggregated over each subtree, see Options.aggregates()
+    private int pageSize; //the bytes in a page of a paged file, 0 if the file is not paged
+    private int slotsPerPage; //the nodes a page holds
+    private int slotMapBytes; //the bytes at the start of each page marking its used slots
+    PageStorage pages; //the page pool of a paged file, which is also storage, null otherwise, read by the tests
+    private BitSet roomyPages; //the pages of a paged file with at least half their slots free
+    private static final long MAGIC = 0xA71EE5A71EE5A71EL; //the first 8 bytes of a version 2 file
+    private boolean copyOnWrite; //changes write new copies of the nodes they touch, see Options.copyOnWrite()
+    private volatile long epoch; //the number of changes published in copy-on-write mode
+    private final TreeMap<Long, Integer> pins = new TreeMap<>(); //how many readers hold each epoch, guarded by itself
+    private final ArrayDeque<long[]> retired = new ArrayDeque<>(); //{epoch, address} of replaced nodes not yet freed
+    private boolean exclusive; //compact() is keeping readers out, guarded by pins
+
+    /**
+     * The storage engines a tree can use for its file.
+     * FILE uses positional reads and writes on the file, MAPPED maps the file into memory.
+     */
+    public enum Engine { FILE, MAPPED }
+
+    /**
+     * Tuning options used when creating or opening a tree.
+     * The defaults behave exactly like the plain constructors.
+     */
+    public static class Options {
+        private int cacheSize = 0;
+        private boolean writeBack = false;
+        private Engine engine = Engine.FILE;
+        private int version = 0; //0 picks version 1, or 2 when an option needs it
+        private boolean copyOnWrite = false;
+        private boolean writeAheadLog = false;
+        private long maxCommitDelayMicros = 1000;
+        private int maxCommitBatchBytes = 1 << 20;
+        private int pageSize = 0;
+        private int pagePool = 256;
+        private int topLevels = 0;
+        private boolean orderStatistics = false;
+        private int[] aggregateFields = new int[0];
+        private int filterBitsPerKey = 0;
+
+        /**
+         * Sets the maximum number of nodes kept in the node cache, 0 disables the cache.
+         * @param nodes the capacity of the cache in nodes
+         * @return these options
+         */
+        public Options cacheSize(int nodes) {
+            cacheSize = nodes;
+            return this;
+        }
+
+        /**
+         * Chooses between write-through (the default) and write-back caching.
+         * A write-back cache only writes a node to the file when it is evicted or the tree is closed.
+         * @param on true for write-back
+         * @return these options
+         */
+        public Options writeBack(boolean on) {
+            writeBack = on;
+            return this;
+        }
+
+        /**
+         * Chooses the storage engine used for the tree file.
+         * @param e the engine, FILE by default
+         * @return these options
+         */
+        public Options engine(Engine e) {
+            engine = e;
+            return this;
+        }
+
+        /**
+         * Chooses the file format of a new tree. Existing files are always opened in their own format.
+         * Version 1 (the default) is the original layout with two bytes per character.
+         * Version 2 puts the key, child references and height at the front of each record and
+         * stores one byte per character, so it only takes Latin-1 characters: inserting any other
+         * throws an IllegalArgumentException. Paged files, subtree sizes and aggregates need
+         * version 2, and asking for them picks it unless version 1 is chosen here.
+         * @param v 1 or 2
+         * @return these options
+         */
+        public Options version(int v) {
+            if (v != 1 && v != 2)
+                throw new IllegalArgumentException("unknown format version " + v);
+            version = v;
+            return this;
+        }
+
+        /**
+         * Turns on copy-on-write changes. Inserts and removes then write every node they change
+         * to a new address and publish the new root at the end, leaving the old version intact.
+         * Lookups, scans and snapshots read a pinned root without taking the lock, so they never
+         * wait for a change and a change never waits for them.
+         * A replaced node goes back on the free list once no pinned version can reach it.
+         * @param on true for copy-on-write
+         * @return these options
+         */
+        public Options copyOnWrite(boolean on) {
+            copyOnWrite = on;
+            return this;
+        }
+
+        /**
+         * Turns on the write-ahead log, kept in a file named after the tree file with ".wal" added.
+         * Each insert and remove then returns only once its changes, including the new root,
+         * are on disk, and opening the tree after a crash redoes the logged changes.
+         * The log is replayed on open even when this is off. It cannot be combined with
+         * write-back caching, which would keep changes from the log.
+         * @param on true to log changes
+         * @return these options
+         */
+        public Options writeAheadLog(boolean on) {
+            writeAheadLog = on;
+            return this;
+        }
+
+        /**
+         * Sets the bounds of group commit. Changes are made durable together by one force of the log,
+         * which happens once the oldest has waited maxDelayMicros, once the group has
+         * maxBatchBytes of log, or as soon as a change waits with no other change queued behind it.
+         * @param maxDelayMicros the longest a change waits for others to join its group, 1000 by default
+         * @param maxBatchBytes the log bytes that end a group early, 1 MiB by default
+         * @return these options
+         */
+        public Options groupCommit(long maxDelayMicros, int maxBatchBytes) {
+            maxCommitDelayMicros = maxDelayMicros;
+            maxCommitBatchBytes = maxBatchBytes;
+            return this;
+        }
+
+        /**
+         * Makes a new version 2 tree paged. Its nodes are then kept in slots of fixed size pages,
+         * and a new node goes into the page of its parent, which is split first if it is full,
+         * so small subtrees share a page and a lookup reads about one page per few levels. Pages
+         * are read and written whole through a pool of pagePool() pages. Existing files keep
+         * their own layout.
+         * @param bytes the page size, a power of two from 512 to 65536, or 0 for unpaged
+         * @return these options
+         */
+        public Options pageSize(int bytes) {
+            if (bytes != 0 && (Integer.bitCount(bytes) != 1 || bytes < 512 || bytes > 65536))
+                throw new IllegalArgumentException("bad page size " + bytes);
+            pageSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sets the number of pages the page pool of a paged tree holds.
+         * @param pages the capacity of the pool, 256 by default
+         * @return these options
+         */
+        public Options pagePool(int pages) {
+            pagePool = pages;
+            return this;
+        }
+
+        /**
+         * Sets how many levels at the top of the tree are kept in memory, 0 keeps none.
+         * Every lookup and change walks through them, so only the levels below cost reads.
+         * A node is kept while its height is within levels of the root's, which rotations and
+         * other changes keep up to date as they write nodes. Opening an existing tree starts
+         * a background thread that reads these levels in. 12 levels hold up to 4095 nodes.
+         * @param levels the number of levels, 0 by default
+         * @return these options
+         */
+        public Options topLevels(int levels) {
+            topLevels = levels;
+            return this;
+        }
+
+        /**
+         * Makes each node of a new version 2 tree store the number of nodes in its subtree,
+         * which rank(), select() and countRange() need. Every insert and remove then rewrites
+         * the whole path to the root, not just the part whose heights change.
+         * Existing files keep their own layout.
+         * @param on true to store subtree sizes
+         * @return these options
+         */
+        public Options orderStatistics(boolean on) {
+            orderStatistics = on;
+            return this;
+        }
+
+        /**
+         * Makes each node of a new version 2 tree store the sum, minimum and maximum of some of
+         * its int fields over its subtree, which aggregate() needs. The subtree sizes of
+         * orderStatistics() are stored too, and serve as the count. Existing files keep their own layout.
+         * @param fields the positions of the int fields to aggregate
+         * @return these options
+         */
+        public Options aggregates(int... fields) {
+            aggregateFields = fields.clone();
+            return this;
+        }
+
+        /**
+         * Keeps a Bloom filter over the keys in a file named after the tree file with ".bloom"
+         * added, so stringFind(), intFind(), find() and remove() of a key that is not in the tree
+         * mostly return without reading a node. Removed keys stay in the filter until it is
+         * built again from the tree, which happens once half of the keys added to it have been
+         * removed, or twice as many keys have been added as it was built for. 10 bits per key
+         * give about 1% false positives. Once a tree has a filter it is kept up to date whenever
+         * the tree is opened, and deleting the file drops it.
+         * @param bitsPerKey the bits of filter per key, 0 to keep what the tree has
+         * @return these options
+         */
+        public Options bloomFilter(int bitsPerKey) {
+            if (bitsPerKey < 0 || bitsPerKey > 64)
+                throw new IllegalArgumentException("bad bits per key " + bitsPerKey);
+            filterBitsPerKey = bitsPerKey;
+            return this;
+        }
+    }
+
+    /**
+     * A size bounded cache of nodes keyed by their address in the file, split by a hash of the
+     * address into segments that each have their own monitor, slots and CLOCK hand. Lookups
+     * run in parallel under the read lock, and with one monitor every cached node read of every
+     * descent would wait for the others; split up they only meet when they use the same segment.
+     * Eviction is CLOCK within each segment, which is close to CLOCK over the whole cache since
+     * the hash spreads the nodes evenly.
+     */
+    private class NodeCache {
+        private static final int MIN_SEGMENT_NODES = 64; //a segment never holds fewer nodes than this, unless there is one
+        private final boolean writeBack;
+        private final CacheSegment[] segments;
+
+        private NodeCache(int capacity, boolean writeBack) {
+            this.writeBack = writeBack;
+            //a few segments per processor keep collisions rare without making segments small
+            int wanted = Math.min(4 * Runtime.getRuntime().availableProcessors(), capacity / MIN_SEGMENT_NODES);
+            segments = new CacheSegment[Integer.highestOneBit(Math.max(1, wanted))];
+            for (int i = 0; i < segments.length; i++)
+                segments[i] = new CacheSegment(capacity / segments.length + (i < capacity % segments.length ? 1 : 0));
+        }
+
+        /**
+         * @param addr the address of a node
+         * @return the segment that caches the node at addr, whose monitor guards load() and lend()
+         */
+        private CacheSegment segment(long addr) {
+            //the high half of the hash, while segments find entries with both halves
+            return segments[(int) (addr * 0x9E3779B97F4A7C15L >>> 32) & (segments.length - 1)];
+        }
+
+        //stores a copy of n, marking it as not yet written when isDirty is true
+        private void store(long addr, Node n, boolean isDirty) throws IOException {
+            segment(addr).store(addr, n, isDirty);
+        }
+
+        //drops an address whose contents are no longer a node
+        private void invalidate(long addr) {
+            segment(addr).invalidate(addr);
+        }
+
+        //writes every dirty node to the file
+        private void flush() throws IOException {
+            for (CacheSegment s : segments)
+                s.flush();
+        }
+    }
+
+    /**
+     * One segment of the node cache, using CLOCK eviction.
+     * Nodes live in a fixed set of slots found through an open addressing table of addresses,
+     * and an evicted slot's node is reused for the next miss, so once the cache is full
+     * neither hits nor misses allocate anything.
+     * The nodes it hands out belong to the cache; readNode() copies them for callers that modify nodes.
+     * Lookups run in parallel, so load() and the use of the node it returns must happen
+     * while holding the segment's monitor. A node handed out by lend() may be used after the
+     * monitor is released, so its slot is never refilled in place: the slot gets a new node.
+     */
+    private class CacheSegment {
+        private final long[] table; //addresses in the hash table, 0 marks an empty entry
+        private final int[] slotOf; //the slot holding the node of each table entry
+        private final int mask; //table.length - 1
+        private final Node[] nodes; //the cached nodes, created the first time a slot is used
+        private final long[] slotAddr; //the address held in each slot, 0 if the slot is empty
+        private final boolean[] referenced; //set on every use, cleared as the clock hand passes
+        private final boolean[] dirty; //slots holding a node not yet written to the file
+        private final boolean[] lent; //slots whose node was handed out by lend() and must not change
+        private final int[] freeSlots; //stack of empty slots
+        private int numFree;
+        private int hand; //the next slot the clock looks at
+
+        private CacheSegment(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) * 2;
+            table = new long[size];
+            slotOf = new int[size];
+            mask = size - 1;
+            nodes = new Node[capacity];
+            slotAddr = new long[capacity];
+            referenced = new boolean[capacity];
+            dirty = new boolean[capacity];
+            lent = new boolean[capacity];
+            freeSlots = new int[capacity];
+            for (int i = 0; i < capacity; i++)
+                freeSlots[numFree++] = capacity - 1 - i;
+        }
+
+        //the home position of addr in the table
+        private int home(long addr) {
+            return Long.hashCode(addr * 0x9E3779B97F4A7C15L) & mask;
+        }
+
+        //returns the table position of addr, or -1 if it is not cached
+        private int find(long addr) {
+            for (int i = home(addr); table[i] != 0; i = (i + 1) & mask)
+                if (table[i] == addr)
+                    return i;
+            return -1;
+        }
+
+        //adds addr to the table, pointing at slot
+        private void insert(long addr, int slot) {
+            int i = home(addr);
+            while (table[i] != 0)
+                i = (i + 1) & mask;
+            table[i] = addr;
+            slotOf[i] = slot;
+        }
+
+        //removes the table entry at position i, shifting back entries that probed past it
+        private void delete(int i) {
+            table[i] = 0;
+            for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+                int h = home(table[j]);
+                //the entry at j may move to i unless its home lies cyclically in (i, j]
+                boolean stays = i <= j ? (i < h && h <= j) : (i < h || h <= j);
+                if (!stays) {
+                    table[i] = table[j];
+                    slotOf[i] = slotOf[j];
+                    table[j] = 0;
+                    i = j;
+                }
+            }
+        }
+
+        //returns an empty slot, evicting the first unreferenced node the clock hand finds
+        private int takeSlot() throws IOException {
+            if (numFree > 0)
+                return freeSlots[--numFree];
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % nodes.length;
+            }
+            int slot = hand;
+            hand = (hand + 1) % nodes.length;
+            //write the node out first if it was never written
+            if (dirty[slot]) {
+                nodes[slot].writeRecord(slotAddr[slot]);
+                dirty[slot] = false;
+            }
+            delete(find(slotAddr[slot]));
+            slotAddr[slot] = 0;
+            return slot;
+        }
+
+        //returns the node of slot to be filled, a new one if the old one was lent out
+        private Node refill(int slot) {
+            if (nodes[slot] == null || lent[slot]) {
+                nodes[slot] = new Node();
+                lent[slot] = false;
+            }
+            return nodes[slot];
+        }
+
+        //puts addr into an empty slot and returns the slot's node for the caller to fill
+        private Node claim(long addr, int slot) {
+            Node n = refill(slot);
+            slotAddr[slot] = addr;
+            referenced[slot] = true;
+            insert(addr, slot);
+            return n;
+        }
+
+        //returns the slot holding the node at addr, reading it into a slot first if needed
+        private int loadSlot(long addr) throws IOException {
+            int i = find(addr);
+            if (i >= 0) {
+                stats.cacheHits.increment();
+                referenced[slotOf[i]] = true;
+                return slotOf[i];
+            }
+            stats.cacheMisses.increment();
+            int slot = takeSlot();
+            try {
+                refill(slot).read(addr);
+            } catch (IOException e) {
+                freeSlots[numFree++] = slot;
+                throw e;
+            }
+            claim(addr, slot);
+            return slot;
+        }
+
+        //returns the cached node at addr, reading it into a slot first if needed
+        private Node load(long addr) throws IOException {
+            return nodes[loadSlot(addr)];
+        }
+
+        //returns the cached node at addr for use after the monitor is released, see peekNode()
+        private Node lend(long addr) throws IOException {
+            int slot = loadSlot(addr);
+            lent[slot] = true;
+            return nodes[slot];
+        }
+
+        //stores a copy of n, marking it as not yet written when isDirty is true
+        private synchronized void store(long addr, Node n, boolean isDirty) throws IOException {
+            int i = find(addr);
+            int slot = i >= 0 ? slotOf[i] : takeSlot();
+            Node cached = i >= 0 ? refill(slot) : claim(addr, slot);
+            cached.copyFrom(n);
+            cached.addr = addr;
+            referenced[slot] = true;
+            dirty[slot] |= isDirty;
+        }
+
+        //drops an address whose contents are no longer a node
+        private synchronized void invalidate(long addr) {
+            int i = find(addr);
+            if (i < 0)
+                return;
+            int slot = slotOf[i];
+            delete(i);
+            slotAddr[slot] = 0;
+            dirty[slot] = false;
+            referenced[slot] = false;
+            freeSlots[numFree++] = slot;
+        }
+
+        //writes every dirty node to the file
+        private synchronized void flush() throws IOException {
+            for (int slot = 0; slot < nodes.length; slot++) {
+                if (dirty[slot]) {
+                    nodes[slot].writeRecord(slotAddr[slot]);
+                    dirty[slot] = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * A key and its fields, as handed to bulkLoad().
+     */
+    public static class Record {
+        private final int key;
+        private final char[][] stringFields;
+        private final int[] intFields;
+
+        /**
+         * @param k the key value
+         * @param sFields the char fields, null ('\0') padded to their full lengths
+         * @param iFields the int fields
+         */
+        public Record(int k, char[][] sFields, int[] iFields) {
+            key = k;
+            stringFields = sFields;
+            intFields = iFields;
+        }
+
+        /**
+         * @return the key value
+         */
+        public int getKey() {
+            return key;
+        }
+
+        /**
+         * @return the char fields
+         */
+        public char[][] getStringFields() {
+            return stringFields;
+        }
+
+        /**
+         * @return the int fields
+         */
+        public int[] getIntFields() {
+            return intFields;
+        }
+    }
+
+    /**
+     * The count, sum, minimum and maximum of an int field over a key range, see aggregate().
+     */
+    public static class Aggregate {
+        private long count;
+        private long sum;
+        private int min = Integer.MAX_VALUE;
+        private int max = Integer.MIN_VALUE;
+
+        //takes in one value
+        private void add(int v) {
+            count++;
+            sum += v;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+
+        //takes in the stored aggregates of the subtree of n for aggregated field j
+        private void add(Node n, int j) {
+            count += n.size;
+            sum += n.aggregates[3 * j];
+            min = Math.min(min, (int) n.aggregates[3 * j + 1]);
+            max = Math.max(max, (int) n.aggregates[3 * j + 2]);
+        }
+
+        /**
+         * @return the number of records in the range
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the sum of the field over the range
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * @return the smallest value of the field, Integer.MAX_VALUE if the range is empty
+         */
+        public int getMin() {
+            return min;
+        }
+
+        /**
+         * @return the largest value of the field, Integer.MIN_VALUE if the range is empty
+         */
+        public int getMax() {
+            return max;
+        }
+
+        public String toString() {
+            return "count=" + count + " sum=" + sum + " min=" + min + " max=" + max;
+        }
+    }
 
     /**
      * A simple node class with additional attributes for an AVL tree
@@ -26,6 +618,15 @@ public class AVLTree {
         private long left;
         private long right;
         private int height;
+        private long addr; //where the node is stored, 0 until it has been given an address
+        private int storedHeight = -1; //the height the node had when it was read, -1 for a new node
+        private int size = 1; //the number of nodes in the subtree, only kept in sized files
+        private int storedSize = -1; //the size the node had when it was read, -1 for a new node
+        private long[] aggregates; //the sum, minimum and maximum over the subtree of each aggregated field
+        private boolean aggregatesChanged; //true when the aggregates have changed since the node was read
+        private Node leftNode; //the left child if it is already in memory
+        private Node rightNode; //the right child if it is already in memory
+        private boolean dirty; //true when the node has changed since it was last written
 
         /**
          * A standard constructor for an in memory node
@@ -42,6 +643,22 @@ public class AVLTree {
             stringFields = sFields;
             intFields = iFields;
             height = 0;
+            //a new node is a leaf, so its aggregates are its own values
+            aggregates = new long[3 * aggregateFields.length];
+            for (int j = 0; j < aggregateFields.length; j++)
+                Arrays.fill(aggregates, 3 * j, 3 * j + 3, iFields[aggregateFields[j]]);
+        }
+
+        /**
+         * constructor for an empty node with fields of the right lengths
+         */
+        private Node() {
+            //instantiate the 2D char array
+            stringFields = new char[numStringFields][];
+            for(int i = 0; i < numStringFields; i++)
+                stringFields[i] = new char[fieldLengths[i]];
+            intFields = new int[numIntFields];
+            aggregates = new long[3 * aggregateFields.length];
         }
 
         /**
@@ -50,53 +667,139 @@ public class AVLTree {
          * @throws IOException
          */
         private Node(long addr) throws IOException {
-            //goto address and read key value
-            f.seek(addr);
-            key = f.readInt();
+            this();
+            read(addr);
+        }
 
-            //instantiate the 2D char array
-            stringFields = new char[numStringFields][];
-            for(int i = 0; i < numStringFields; i++)
-                stringFields[i] = new char[fieldLengths[i]];
+        /**
+         * Loads the node stored at addr into this node, reusing its field arrays.
+         * @param addr address of node stored in file
+         * @throws IOException
+         */
+        private void read(long addr) throws IOException {
+            //read the whole record in one go and decode it from the buffer
+            ByteBuffer record = readRecord(addr);
+            stats.nodeReads.increment();
+            this.addr = addr;
+            key = record.getInt(0);
 
             //load String values into the 2D array stringFields, letter by letter
             for(int i = 0; i < numStringFields; i++) {
                 for(int j = 0; j < fieldLengths[i]; j++) {
-                    stringFields[i][j] = f.readChar();
+                    stringFields[i][j] = getChar(record, stringOffsets[i] + charBytes * j);
                 }
             }
 
             //load ints into the array intFields
-            intFields = new int[numIntFields];
             for(int i = 0; i < numIntFields; i++) {
-                intFields[i] = f.readInt();
+                intFields[i] = record.getInt(intOffset + 4 * i);
             }
 
             //set remaining properties
-            left = f.readLong();
-            right = f.readLong();
-            height = f.readInt();
+            left = record.getLong(leftOffset);
+            right = record.getLong(leftOffset + 8);
+            height = record.getInt(heightOffset);
+            storedHeight = height;
+            if (sized)
+                size = record.getInt(sizeOffset);
+            storedSize = size;
+            for (int j = 0; j < aggregateFields.length; j++) {
+                int at = sizeOffset + 4 + 16 * j;
+                aggregates[3 * j] = record.getLong(at);
+                aggregates[3 * j + 1] = record.getInt(at + 8);
+                aggregates[3 * j + 2] = record.getInt(at + 12);
+            }
+            aggregatesChanged = false;
         }
 
-        //writes the node to the file at location addr
+        //returns the key and a copy of the fields, which callers may change without touching a shared node
+        private Record toRecord() {
+            char[][] sFields = new char[numStringFields][];
+            for (int i = 0; i < numStringFields; i++)
+                sFields[i] = stringFields[i].clone();
+            return new Record(key, sFields, intFields.clone());
+        }
+
+        //returns a deep copy of the node as it is stored, so cached nodes are never shared
+        private Node copy() {
+            Node n = new Node();
+            n.copyFrom(this);
+            return n;
+        }
+
+        //copies the stored contents of n into this node's own arrays
+        private void copyFrom(Node n) {
+            key = n.key;
+            for (int i = 0; i < numStringFields; i++)
+                System.arraycopy(n.stringFields[i], 0, stringFields[i], 0, fieldLengths[i]);
+            System.arraycopy(n.intFields, 0, intFields, 0, numIntFields);
+            left = n.left;
+            right = n.right;
+            height = n.height;
+            addr = n.addr;
+            storedHeight = height;
+            size = n.size;
+            storedSize = size;
+            System.arraycopy(n.aggregates, 0, aggregates, 0, aggregates.length);
+            aggregatesChanged = false;
+        }
+
+        //writes the node at its own address
+        private void writeNode() throws IOException {
+            writeNode(addr);
+            dirty = false;
+        }
+
+        //writes the node at location addr, through the cache if there is one
         private void writeNode(long addr) throws IOException {
-            //goto address and write key value
-            f.seek(addr);
-            f.writeInt(key);
+            keepTop(addr, this);
+            if (cache == null) {
+                writeRecord(addr);
+                return;
+            }
+            if (!cache.writeBack)
+                writeRecord(addr);
+            cache.store(addr, this, cache.writeBack);
+        }
 
-            //write chars to file and pad with null chars if necessary
-            for(int i = 0; i < numStringFields; i++)
-                for(int j = 0; j < fieldLengths[i]; j++)
-                        f.writeChar(stringFields[i][j]);
+        //writes the node to the file at location addr
+        private void writeRecord(long addr) throws IOException {
+            ByteBuffer record = recordBuffers.get();
+            record.clear();
+            encode(record);
+            record.flip();
+            storage.write(addr, record);
+            stats.nodeWrites.increment();
+        }
 
-            //write each element of intField to file
-            for (int intField : intFields)
-                f.writeInt(intField);
+        //puts the node into buf in the same layout it has in the file
+        private void encode(ByteBuffer buf) {
+            //encode the key value into the buffer
+            int base = buf.position();
+            buf.putInt(base, key);
 
-            //write remaining properties to file
-            f.writeLong(left);
-            f.writeLong(right);
-            f.writeInt(height);
+            //write chars to the buffer and pad with null chars if necessary
+            for(int i = 0; i < numStringFields; i++)
+                for(int j = 0; j < fieldLengths[i]; j++)
+                        putChar(buf, base + stringOffsets[i] + charBytes * j, stringFields[i][j]);
+
+            //write each element of intField to the buffer
+            for (int i = 0; i < numIntFields; i++)
+                buf.putInt(base + intOffset + 4 * i, intFields[i]);
+
+            //write remaining properties to the buffer
+            buf.putLong(base + leftOffset, left);
+            buf.putLong(base + leftOffset + 8, right);
+            buf.putInt(base + heightOffset, height);
+            if (sized)
+                buf.putInt(base + sizeOffset, size);
+            for (int j = 0; j < aggregateFields.length; j++) {
+                int at = base + sizeOffset + 4 + 16 * j;
+                buf.putLong(at, aggregates[3 * j]);
+                buf.putInt(at + 8, (int) aggregates[3 * j + 1]);
+                buf.putInt(at + 12, (int) aggregates[3 * j + 2]);
+            }
+            buf.position(base + nodeSize());
         }
 
         //overrides the toString() method for printing
@@ -116,273 +819,2735 @@ public class AVLTree {
             result += "\nint Fields: ";
             for (int intField : intFields) result += intField + " ";
 
-            result += '\n' + "Left: " + left + '\n' + "Right: " + right + '\n' + "Height: " + height;
-            return result += '\n';
+            result += '\n' + "Left: " + left + '\n' + "Right: " + right + '\n' + "Height: " + height;
+            if (sized)
+                result += '\n' + "Size: " + size;
+            return result += '\n';
+        }
+    }
+
+    /**
+     * Creates a new empty AVL tree stored in the file fname.
+     * The number of character string fields is stringFieldLengths.length.
+     * stringFieldLengths contains the length of each string field.
+     * @param fname name of new RandomAccessFile
+     * @param stringFieldsLengths character field lengths
+     * @param numIntFields2 number of int fields
+     * @throws IOException
+     */
+    public AVLTree(String fname, int[] stringFieldsLengths, int numIntFields2) throws IOException {
+        this(fname, stringFieldsLengths, numIntFields2, new Options());
+    }
+
+    /**
+     * Creates a new empty AVL tree stored in the file fname using the given options.
+     * @param fname name of new RandomAccessFile
+     * @param stringFieldsLengths character field lengths
+     * @param numIntFields2 number of int fields
+     * @param options the tuning options
+     * @throws IOException
+     */
+    public AVLTree(String fname, int[] stringFieldsLengths, int numIntFields2, Options options) throws IOException {
+        //create new RandomAccessFile that is allowed to read and write.
+        //delete any existing files of the same name
+        File path = new File(fname);
+        if(path.exists())
+            path.delete();
+        new File(fname + ".wal").delete();
+        for (int i = 0; i < numIntFields2; i++)
+            SecondaryIndex.delete(indexName(fname, i));
+        BloomFilter.delete(filterName(fname));
+
+        //instantiate properties of AVLTree
+        fileName = fname;
+        f = new RandomAccessFile(path, "rw");
+        storage = openStorage(fname, options);
+        fieldLengths = stringFieldsLengths;
+        numStringFields = stringFieldsLengths.length;
+        numIntFields = numIntFields2;
+        pageSize = options.pageSize;
+        aggregateFields = options.aggregateFields;
+        for (int field : aggregateFields)
+            if (field < 0 || field >= numIntFields)
+                throw new IllegalArgumentException("there is no int field " + field + " to aggregate");
+        sized = options.orderStatistics || aggregateFields.length > 0;
+        version = options.version != 0 ? options.version : pageSize != 0 || sized ? 2 : 1;
+        if (pageSize != 0 && version == 1)
+            throw new IllegalArgumentException("only version 2 files can be paged");
+        if (sized && version == 1)
+            throw new IllegalArgumentException("only version 2 files can store subtree sizes");
+        root = 0;
+        free = 0;
+
+        //write currently known values to the file, version 2 files start with a magic number
+        ByteBuffer header = ByteBuffer.allocate(headerSize());
+        if (version == 2) {
+            header.putLong(MAGIC);
+            header.putInt(version);
+            header.putInt((pageSize == 0 ? 0 : FLAG_PAGED | Integer.numberOfTrailingZeros(pageSize) << 8)
+                    | (sized ? FLAG_SIZED : 0) | (aggregateFields.length > 0 ? FLAG_AGGREGATES : 0));
+        }
+        header.putLong(root);
+        header.putLong(free);
+        header.putInt(numStringFields);
+        for (int i : stringFieldsLengths)
+            header.putInt(i);
+
+        header.putInt(numIntFields);
+        if (aggregateFields.length > 0) {
+            header.putInt(aggregateFields.length);
+            for (int field : aggregateFields)
+                header.putInt(field);
+        }
+        header.flip();
+        storage.write(0, header);
+        configure(options);
+        if (log != null)
+            log.force();
+    }
+
+    /**
+     * reuse an existing tree stored in the file fname
+     * @param fname name of existing RandomAccessFile
+     * @throws IOException
+     */
+    public AVLTree(String fname) throws IOException {
+        this(fname, new Options());
+    }
+
+    /**
+     * reuse an existing tree stored in the file fname using the given options
+     * @param fname name of existing RandomAccessFile
+     * @param options the tuning options
+     * @throws IOException
+     */
+    public AVLTree(String fname, Options options) throws IOException {
+        //open existing file and instantiate values
+        fileName = fname;
+        f = new RandomAccessFile(new File(fname), "rw");
+        storage = openStorage(fname, options);
+        //a version 1 file starts with the root address, which can never match the magic number
+        version = readLong(0) == MAGIC ? readInt(8) : 1;
+        if (version != 1 && version != 2)
+            throw new IOException(fname + " has unknown format version " + version);
+        int flags = version == 2 ? readInt(12) : 0;
+        pageSize = (flags & FLAG_PAGED) != 0 ? 1 << (flags >>> 8 & 0xFF) : 0;
+        sized = (flags & FLAG_SIZED) != 0;
+        int h = headerOffset();
+        root = readLong(h);
+        free = readLong(h + 8);
+        numStringFields = readInt(h + 16);
+        fieldLengths = new int[numStringFields];
+        for(int i = 0; i < numStringFields; i++)
+            fieldLengths[i] = readInt(h + 20 + 4 * i);
+        numIntFields = readInt(h + 20 + 4 * numStringFields);
+        if ((flags & FLAG_AGGREGATES) != 0) {
+            aggregateFields = new int[readInt(h + 24 + 4 * numStringFields)];
+            for (int j = 0; j < aggregateFields.length; j++)
+                aggregateFields[j] = readInt(h + 28 + 4 * numStringFields + 4 * j);
+        }
+        configure(options);
+        warmUp();
+    }
+
+    //creates the storage engine chosen in the options on top of f, after replaying any log
+    private Storage openStorage(String fname, Options options) throws IOException {
+        if (options.writeAheadLog && options.writeBack)
+            throw new IllegalArgumentException("write-back caching cannot be used with the write-ahead log");
+        Storage s = options.engine == Engine.MAPPED ? new MappedStorage(f) : new FileStorage(f);
+        s = new MeteredStorage(s, stats);
+        File logFile = new File(fname + ".wal");
+        if (!options.writeAheadLog) {
+            WalStorage.recover(s, logFile);
+            return s;
+        }
+        log = new WalStorage(s, logFile, options.maxCommitDelayMicros, options.maxCommitBatchBytes);
+        return log;
+    }
+
+    //applies the options shared by both constructors
+    private void configure(Options options) throws IOException {
+        this.options = options;
+        int size = nodeSize();
+        recordBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(size));
+
+        //where each field starts within a record
+        //version 1: key, char fields at 2 bytes a char, int fields, left, right, height
+        //version 2: key, left, right, height, the subtree size in sized files, the sum (8 bytes), minimum
+        //and maximum of each aggregated field, char fields at 1 byte a char, int fields
+        charBytes = version == 1 ? 2 : 1;
+        leftOffset = version == 1 ? nodeSize() - 20 : 4;
+        heightOffset = leftOffset + 16;
+        sizeOffset = heightOffset + 4;
+        stringOffsets = new int[numStringFields];
+        int offset = version == 1 ? 4 : sized ? 28 + 16 * aggregateFields.length : 24;
+        for (int i = 0; i < numStringFields; i++) {
+            stringOffsets[i] = offset;
+            offset += charBytes * fieldLengths[i];
+        }
+        intOffset = offset;
+
+        if (options.cacheSize > 0)
+            cache = new NodeCache(options.cacheSize, options.writeBack);
+        copyOnWrite = options.copyOnWrite;
+        if (options.topLevels > 0) {
+            topNodes = new TopNodes();
+            topHeight = -options.topLevels;
+        }
+
+        //a page is a map of used slots, one bit each, followed by the slots
+        if (pageSize != 0) {
+            slotsPerPage = 8 * pageSize / (8 * nodeSize() + 1);
+            while ((slotsPerPage + 7) / 8 + slotsPerPage * nodeSize() > pageSize)
+                slotsPerPage--;
+            if (slotsPerPage < 1)
+                throw new IllegalArgumentException("a " + nodeSize() + " byte record does not fit in a " + pageSize + " byte page");
+            slotMapBytes = (slotsPerPage + 7) / 8;
+            openPages();
+        }
+        registerStats();
+
+        //an index exists for each int field that has index files, and one not closed cleanly is built again
+        indexes = new SecondaryIndex[numIntFields];
+        for (int i = 0; i < numIntFields; i++)
+            if (new File(indexName(fileName, i)).exists()) {
+                indexes[i] = new SecondaryIndex(indexName(fileName, i), indexOptions());
+                if (indexes[i].isFresh())
+                    fillIndex(i);
+            }
+
+        //a filter exists if its file does or the options ask for one, and one not closed cleanly is built again
+        String name = filterName(fileName);
+        if (options.filterBitsPerKey > 0 || new File(name).exists()) {
+            BloomFilter loaded = BloomFilter.load(name);
+            int bitsPerKey = options.filterBitsPerKey > 0 ? options.filterBitsPerKey : loaded != null ? loaded.getBitsPerKey() : 10;
+            if (loaded == null || loaded.getBitsPerKey() != bitsPerKey) {
+                buildFilter(bitsPerKey);
+                filter.save(name, false);
+            } else {
+                filter = loaded;
+                BloomFilter.markOpen(name);
+            }
+        }
+    }
+
+    //the file name of the filter of the tree in fname
+    private static String filterName(String fname) {
+        return fname + ".bloom";
+    }
+
+    /**
+     * Builds the filter anew from the keys in the tree, with room for as many keys again.
+     * Called while no change can run.
+     * @param bitsPerKey the bits of filter per key
+     * @throws IOException
+     */
+    private void buildFilter(int bitsPerKey) throws IOException {
+        int[] keys = new int[1024];
+        int count = 0;
+        long[] stack = new long[64];
+        int top = 0;
+        if (root != 0)
+            stack[top++] = root;
+        while (top > 0) {
+            Node n = peekNode(stack[--top]);
+            if (count == keys.length)
+                keys = Arrays.copyOf(keys, 2 * count);
+            keys[count++] = n.key;
+            //an AVL tree of 2^31 nodes is less than 45 levels high, so the stack holds both children
+            if (n.left != 0)
+                stack[top++] = n.left;
+            if (n.right != 0)
+                stack[top++] = n.right;
+        }
+        BloomFilter built = new BloomFilter(2L * count, bitsPerKey);
+        for (int i = 0; i < count; i++)
+            built.add(keys[i]);
+        filter = built;
+    }
+
+    /**
+     * @param k a key value
+     * @return false if the filter shows k is not in the tree, true if there is no filter or k may be in it
+     */
+    private boolean mayHold(int k) {
+        BloomFilter f = filter;
+        if (f == null || f.mightContain(k))
+            return true;
+        stats.filterSkips.increment();
+        return false;
+    }
+
+    //the file name of the index on int field i of the tree in fname
+    private static String indexName(String fname, int i) {
+        return fname + ".idx" + i;
+    }
+
+    //the options of the trees of an index, which share the engine and cache size of this tree
+    private Options indexOptions() {
+        return new Options().engine(options.engine).cacheSize(options.cacheSize);
+    }
+
+    //makes the statistics visible in JMX, a tree that cannot register them still works without
+    private void registerStats() {
+        try {
+            ObjectName name = new ObjectName("AVLTree:type=Tree,file=" + ObjectName.quote(new File(fileName).getName()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, name);
+            statsName = name;
+        } catch (JMException e) {
+            //another open tree of the same name already holds it
+        }
+    }
+
+    /**
+     * Finds the pages with room in a paged file and puts the page pool in front of the storage.
+     * @throws IOException
+     */
+    private void openPages() throws IOException {
+        roomyPages = new BitSet();
+        ByteBuffer map = ByteBuffer.allocate(slotMapBytes);
+        long length = storage.length();
+        for (long page = 1; page * pageSize < length; page++) {
+            map.clear();
+            storage.read(page * pageSize, map);
+            noteRoom(page, map);
+        }
+        pages = new PageStorage(storage, pageSize, options.pagePool);
+        storage = pages;
+    }
+
+    /**
+     * @return the number of node reads served by the node cache
+     */
+    public long getCacheHits() {
+        return stats.getCacheHits();
+    }
+
+    /**
+     * @return the number of node reads that missed the node cache and went to the file
+     */
+    public long getCacheMisses() {
+        return stats.getCacheMisses();
+    }
+
+    /**
+     * Copies the statistics of the tree: node and file I/O, rotations, allocations, cache use
+     * and the latency of each public operation, counted since the tree was opened.
+     * The same statistics are live in JMX under AVLTree:type=Tree,file=<file name>.
+     * @return the statistics as they are now
+     */
+    public TreeStatsMXBean getStats() {
+        return stats.snapshot();
+    }
+
+    /**
+     * Reads the node at addr, from the cache when possible, for a caller that changes it.
+     * @param addr address of node stored in file
+     * @return an in memory copy of the node
+     * @throws IOException
+     */
+    private Node readNode(long addr) throws IOException {
+        Node top = topNodes == null ? null : topNodes.get(addr);
+        if (top != null)
+            return top.copy();
+        //address 0 is the header, never cache it
+        if (cache == null || addr == 0)
+            return new Node(addr);
+        CacheSegment s = cache.segment(addr);
+        synchronized (s) {
+            return s.load(addr).copy();
+        }
+    }
+
+    /**
+     * Reads the node at addr for a caller that only looks at it, such as a descent or a scan.
+     * A cached node is handed over as it is rather than copied, so it may be shared with the
+     * cache and other readers and must never be changed; see Node.toRecord().
+     * @param addr address of node stored in file
+     * @return the node, not to be changed
+     * @throws IOException
+     */
+    private Node peekNode(long addr) throws IOException {
+        Node top = topNodes == null ? null : topNodes.get(addr);
+        if (top != null)
+            return top;
+        if (cache == null || addr == 0)
+            return new Node(addr);
+        CacheSegment s = cache.segment(addr);
+        synchronized (s) {
+            return s.lend(addr);
+        }
+    }
+
+    /**
+     * Keeps a copy of a node being written if it is near the root, and drops the copy of one
+     * that no longer is, so topNodes always matches the file.
+     * @param addr the address the node is written to
+     * @param n the node
+     */
+    private void keepTop(long addr, Node n) {
+        if (topNodes == null)
+            return;
+        if (n.height >= topHeight) {
+            Node copy = n.copy();
+            copy.addr = addr;
+            topNodes.put(copy);
+        }
+        else
+            topNodes.remove(addr);
+    }
+
+    //keeps the nodes within topLevels of the root height, dropping those now too far below it
+    private void setTopHeight(int rootHeight) {
+        int least = rootHeight - options.topLevels + 1;
+        if (least > topHeight)
+            topNodes.dropBelow(least);
+        topHeight = least;
+    }
+
+    /**
+     * The nodes near the root by address, in an open addressing table like the cache's, so
+     * looking one up does not box the address. Changes are synchronized and lookups take no
+     * lock: a slot holds a whole node, read atomically, and a lookup checks the address of the
+     * node it finds, so one that races a change may miss a node and read it from the file
+     * instead, but never gets another node. Nodes are never changed once they are in.
+     */
+    private static class TopNodes {
+        private volatile AtomicReferenceArray<Node> slots = new AtomicReferenceArray<>(64); //half empty at least
+        private int size;
+
+        //the home position of addr in a table of mask + 1 slots
+        private static int home(long addr, int mask) {
+            return Long.hashCode(addr * 0x9E3779B97F4A7C15L) & mask;
+        }
+
+        /**
+         * @param addr an address
+         * @return the node at addr, or null if it is not kept
+         */
+        private Node get(long addr) {
+            AtomicReferenceArray<Node> t = slots;
+            int mask = t.length() - 1;
+            for (int i = home(addr, mask); ; i = (i + 1) & mask) {
+                Node n = t.get(i);
+                if (n == null || n.addr == addr)
+                    return n;
+            }
+        }
+
+        //the position of addr in the table, or of the empty slot where it would go
+        private int find(AtomicReferenceArray<Node> t, long addr) {
+            int mask = t.length() - 1;
+            int i = home(addr, mask);
+            for (Node n; (n = t.get(i)) != null && n.addr != addr; )
+                i = (i + 1) & mask;
+            return i;
+        }
+
+        //keeps n, in place of any node kept at its address
+        private synchronized void put(Node n) {
+            int i = find(slots, n.addr);
+            if (slots.get(i) == null) {
+                if (2 * (size + 1) > slots.length()) {
+                    rebuild(2 * slots.length(), Integer.MIN_VALUE);
+                    i = find(slots, n.addr);
+                }
+                size++;
+            }
+            slots.set(i, n);
+        }
+
+        //keeps n unless a node is already kept at its address
+        private synchronized void putIfAbsent(Node n) {
+            if (get(n.addr) == null)
+                put(n);
+        }
+
+        //drops the node at addr, moving back the nodes that probed past it
+        private synchronized void remove(long addr) {
+            AtomicReferenceArray<Node> t = slots;
+            int mask = t.length() - 1;
+            int i = find(t, addr);
+            if (t.get(i) == null)
+                return;
+            t.set(i, null);
+            size--;
+            for (int j = (i + 1) & mask; t.get(j) != null; j = (j + 1) & mask) {
+                int h = home(t.get(j).addr, mask);
+                //the node at j may move to i unless its home lies cyclically in (i, j]
+                boolean stays = i <= j ? (i < h && h <= j) : (i < h || h <= j);
+                if (!stays) {
+                    t.set(i, t.get(j));
+                    t.set(j, null);
+                    i = j;
+                }
+            }
+        }
+
+        //drops the nodes lower than height
+        private synchronized void dropBelow(int height) {
+            rebuild(slots.length(), height);
+        }
+
+        //drops every node
+        private synchronized void clear() {
+            slots = new AtomicReferenceArray<>(64);
+            size = 0;
+        }
+
+        //moves the nodes at least height high into a new table of length slots, which lookups then switch to
+        private void rebuild(int length, int height) {
+            AtomicReferenceArray<Node> old = slots;
+            AtomicReferenceArray<Node> t = new AtomicReferenceArray<>(length);
+            int kept = 0;
+            for (int i = 0; i < old.length(); i++) {
+                Node n = old.get(i);
+                if (n != null && n.height >= height) {
+                    t.set(find(t, n.addr), n);
+                    kept++;
+                }
+            }
+            size = kept;
+            slots = t;
+        }
+    }
+
+    /**
+     * Starts a background thread that reads the top levels of the tree into topNodes, so the
+     * first lookups after opening a tree do not each pay for reading them.
+     */
+    private void warmUp() {
+        if (topNodes == null)
+            return;
+        int run = warmUps;
+        Thread warmer = new Thread(() -> {
+            try {
+                readTop(run);
+            } catch (IOException e) {
+                //lookups read whatever the warm-up did not
+            }
+        }, "AVLTree warm-up of " + fileName);
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
+    /**
+     * The body of the warm-up thread, which walks the top levels breadth first.
+     * Each node is handled under the read lock, so changes can run in between; a node is only
+     * followed while it is still in topNodes, which keeps its copy current, so the warm-up never
+     * follows a stale reference. In copy-on-write mode one pin holds the version being walked.
+     * It stops once the tree is compacted or closed.
+     * @param run the value of warmUps when the warm-up was started
+     * @throws IOException
+     */
+    private void readTop(int run) throws IOException {
+        long e = copyOnWrite ? pin() : 0;
+        try {
+            ArrayDeque<Long> queue = new ArrayDeque<>();
+            queue.add(0L);
+            while (!queue.isEmpty()) {
+                long addr = queue.poll();
+                if (!copyOnWrite)
+                    lockRead();
+                try {
+                    if (warmUps != run)
+                        return;
+                    //0 stands for the root, whose height decides how far down to go
+                    if (addr == 0) {
+                        if (root == 0)
+                            return;
+                        Node r = peekNode(root);
+                        setTopHeight(r.height);
+                        topNodes.putIfAbsent(r);
+                        queue.add(root);
+                        continue;
+                    }
+                    Node n = topNodes.get(addr);
+                    if (n == null)
+                        continue;
+                    for (long child : new long[] {n.left, n.right}) {
+                        if (child == 0)
+                            continue;
+                        Node c = topNodes.get(child);
+                        if (c == null && (c = peekNode(child)).height >= topHeight)
+                            topNodes.putIfAbsent(c);
+                        if (c.height >= topHeight)
+                            queue.add(child);
+                    }
+                } finally {
+                    if (!copyOnWrite)
+                        unlockRead();
+                }
+            }
+        } finally {
+            if (copyOnWrite)
+                unpin(e);
+        }
+    }
+
+    /**
+     * Reads the node stored at addr into this thread's record buffer with a single read.
+     * Values are big-endian like DataOutput writes them, so version 1 files stay readable.
+     * @param addr address of node stored in file
+     * @return the buffer holding the record
+     * @throws IOException
+     */
+    private ByteBuffer readRecord(long addr) throws IOException {
+        ByteBuffer record = recordBuffers.get();
+        record.clear();
+        storage.read(addr, record);
+        record.flip();
+        return record;
+    }
+
+    //reads the long stored at pos
+    private long readLong(long pos) throws IOException {
+        ByteBuffer word = wordBuffers.get();
+        word.clear().limit(8);
+        storage.read(pos, word);
+        return word.getLong(0);
+    }
+
+    //reads the int stored at pos
+    private int readInt(long pos) throws IOException {
+        ByteBuffer word = wordBuffers.get();
+        word.clear().limit(4);
+        storage.read(pos, word);
+        return word.getInt(0);
+    }
+
+    //writes the long v at pos
+    private void writeLong(long pos, long v) throws IOException {
+        ByteBuffer word = wordBuffers.get();
+        word.clear().limit(8);
+        word.putLong(0, v);
+        storage.write(pos, word);
+    }
+
+    //the number of bytes a single node takes up in the file
+    private int nodeSize() {
+        int size = 4 + 4 * numIntFields + 8 + 8 + 4 + (sized ? 4 : 0) + 16 * aggregateFields.length;
+        for (int len : fieldLengths)
+            size += (version == 1 ? 2 : 1) * len;
+        return size;
+    }
+
+    //where the root address is in the header, the free list head and field layout follow it
+    private int headerOffset() {
+        return version == 1 ? 0 : 16;
+    }
+
+    //the number of bytes in the header
+    private int headerSize() {
+        return headerOffset() + 8 + 8 + 4 + 4 * numStringFields + 4
+                + (aggregateFields.length > 0 ? 4 + 4 * aggregateFields.length : 0);
+    }
+
+    //reads the char stored at offset within buf
+    private char getChar(ByteBuffer buf, int offset) {
+        return charBytes == 1 ? (char) (buf.get(offset) & 0xFF) : buf.getChar(offset);
+    }
+
+    //stores c at offset within buf, version 2 files only ever get Latin-1 characters, see checkChars()
+    private void putChar(ByteBuffer buf, int offset, char c) {
+        if (charBytes == 2)
+            buf.putChar(offset, c);
+        else
+            buf.put(offset, (byte) c);
+    }
+
+    /**
+     * Makes sure char fields can be stored, before anything is changed.
+     * @param sFields the char fields of a record
+     * @throws IllegalArgumentException if this is a version 2 file and a character is not Latin-1
+     */
+    private void checkChars(char[][] sFields) {
+        if (charBytes == 2)
+            return;
+        for (char[] field : sFields)
+            for (char c : field)
+                if (c > 0xFF)
+                    throw new IllegalArgumentException(String.format("character U+%04X", (int) c)
+                            + " is not Latin-1 and cannot be stored in version 2 file " + fileName);
+    }
+
+    /**
+     * Insert k and the fields into the tree the string fields are null ('\0') padded.
+     * If k is in the tree do nothing
+     * PRE: the number and lengths of the sFields and iFields match the expected number and lengths
+     * @param k the key value being inserted
+     * @param sFields the char field being inserted
+     * @param iFields the int field being inserted
+     * @throws IOException
+     * @throws IllegalArgumentException if this is a version 2 file and a char field is not Latin-1
+     */
+    public void insert(int k, char[][] sFields, int[] iFields) throws IOException {
+        checkChars(sFields);
+        long start = System.nanoTime();
+        try {
+            long tx = 0;
+            lockWrite();
+            try {
+                modCount++;
+                //walk down to the empty spot for k, remembering the path
+                depth = 0;
+                long addr = root;
+                while (addr != 0) {
+                    Node node = readNode(addr);
+                    //if k is in the tree do nothing
+                    if (k == node.key)
+                        return;
+                    push(node, k < node.key);
+                    addr = k < node.key ? node.left : node.right;
+                }
+
+                //the key goes into the filter before any lookup can find it in the tree
+                if (filter != null) {
+                    if (filter.isStale())
+                        buildFilter(filter.getBitsPerKey());
+                    filter.add(k);
+                }
+
+                //get a free address for the new node, near its parent, and hang it on the path
+                reclaim();
+                Node node = new Node(0, k, 0, sFields, iFields);
+                if (pageSize != 0 && !copyOnWrite && depth > 0 && usedSlots(path[depth - 1].addr / pageSize) == slotsPerPage)
+                    splitPage();
+                node.addr = allocate(depth == 0 ? 0 : path[depth - 1].addr);
+                touch(node);
+                long top = fixPath(node);
+                flush();
+                publish(top);
+                tx = commit();
+                updateIndexes(k, iFields, true);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            awaitDurable(tx);
+        } finally {
+            stats.record(TreeStats.INSERT, start);
+        }
+    }
+
+    /**
+     * Copies the tree in oldName into a new version 2 file newName.
+     * The records are streamed out of the old tree in key order and bulk loaded into the new one.
+     * Characters outside Latin-1 cannot be stored in a version 2 file, so a tree holding any
+     * cannot be migrated and the copy fails with an IllegalArgumentException.
+     * If the copy fails for any reason the partly written newName is deleted.
+     * @param oldName the file to convert, in any supported format
+     * @param newName the file to create, which must not be oldName
+     * @throws IOException
+     */
+    public static void migrate(String oldName, String newName) throws IOException {
+        if (new File(oldName).getCanonicalPath().equals(new File(newName).getCanonicalPath()))
+            throw new IllegalArgumentException("cannot migrate " + oldName + " onto itself");
+        try (AVLTree old = new AVLTree(oldName)) {
+            long count = 0;
+            try (Cursor c = old.scan(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+                for (; c.hasNext(); c.next())
+                    count++;
+            }
+            try {
+                try (AVLTree fresh = new AVLTree(newName, old.fieldLengths, old.numIntFields, new Options().version(2));
+                     Cursor records = old.scan(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+                    fresh.bulkLoad(count, records);
+                }
+            } catch (IOException | RuntimeException e) {
+                //a half written file would look like a tree, so leave none behind
+                new File(newName).delete();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Fills an empty tree with count records given in strictly ascending key order.
+     * The nodes are laid out in key order and written front to back in large blocks, so the load
+     * is one sequential pass over the file. Each subtree takes the middle record of its range as
+     * its root, which makes the result perfectly balanced.
+     * PRE: the number and lengths of the fields of each record match the expected number and lengths
+     * @param count the number of records the iterator will return
+     * @param records the records in ascending key order
+     * @throws IOException
+     * @throws IllegalStateException if the tree is not empty
+     * @throws IllegalArgumentException if the keys are not ascending, there are not count records,
+     * or this is a version 2 file and a char field is not Latin-1
+     */
+    public void bulkLoad(long count, Iterator<Record> records) throws IOException {
+        long start = System.nanoTime();
+        try {
+            long tx = 0;
+            lockWrite();
+            try {
+                modCount++;
+                if (root != 0)
+                    throw new IllegalStateException("bulkLoad needs an empty tree");
+                if (count == 0)
+                    return;
+                //the nodes skip the log, so no logged change may be replayed over them later
+                if (log != null)
+                    log.force();
+
+                //the node with in-order position i goes to out.address(i), in paged files in new pages
+                long base = storage.length();
+                if (pageSize != 0)
+                    base = Math.max(pageSize, (base + pageSize - 1) / pageSize * pageSize);
+                NodeWriter out = new NodeWriter(null, base);
+                long[] lastKey = {Long.MIN_VALUE};
+                //the keys go into a filter sized for them as they are loaded
+                if (filter != null)
+                    filter = new BloomFilter(2 * count, filter.getBitsPerKey());
+                load(0, count, out, records, lastKey);
+                if (records.hasNext())
+                    throw new IllegalArgumentException("more than " + count + " records");
+
+                //write what is left of the last block and point the header at the root
+                long end = out.finish();
+                if (pages != null) {
+                    //the pool has not seen the blocks written under it, and only the last page has room
+                    pages.reload();
+                    noteRoom((end - 1) / pageSize);
+                }
+                //the nodes must be on disk before the logged root points at them
+                if (log != null)
+                    log.force();
+                root = out.address((count - 1) >>> 1);
+                writeLong(headerOffset(), root);
+                tx = commit();
+                //the loaded records are indexed by building each index again
+                for (SecondaryIndex index : indexes)
+                    if (index != null)
+                        index.markStale();
+                updateIndexes(0, null, true);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            awaitDurable(tx);
+            //the loaded nodes bypassed topNodes
+            warmUp();
+        } finally {
+            stats.record(TreeStats.BULK_LOAD, start);
+        }
+    }
+
+    //writes a block of loaded nodes, bypassing the write-ahead log since they fill new space
+    private void writeBlock(long pos, ByteBuffer block) throws IOException {
+        if (log != null)
+            log.writeUnlogged(pos, block);
+        else
+            storage.write(pos, block);
+    }
+
+    /**
+     * Writes nodes one after another into new space in large blocks, used by bulkLoad() and
+     * compact(). In a paged file the nodes fill the slots of whole pages, and the slot map of
+     * each page is written with it.
+     */
+    private class NodeWriter {
+        private final FileChannel file; //the file written, or null to write with writeBlock()
+        private final long base; //the address of the first node, page aligned in a paged file
+        private final ByteBuffer block; //the nodes not yet written, zeroed between uses
+        private long blockStart; //the address block starts at
+        private long added; //the number of node positions used so far, including skipped ones
+
+        /**
+         * @param file the file written, or null for this tree's storage
+         * @param base the address of the first node
+         */
+        private NodeWriter(FileChannel file, long base) {
+            this.file = file;
+            this.base = base;
+            int unit = pageSize != 0 ? pageSize : nodeSize();
+            block = ByteBuffer.allocate(Math.max(unit, LOAD_BLOCK_SIZE / unit * unit));
+            blockStart = base;
+        }
+
+        /**
+         * @param i a node position
+         * @return the address the node at position i is written to
+         */
+        private long address(long i) {
+            if (pageSize == 0)
+                return base + i * nodeSize();
+            return base + i / slotsPerPage * pageSize + slotMapBytes + i % slotsPerPage * nodeSize();
+        }
+
+        /**
+         * Starts a new page unless the next k nodes fit in what is left of the current one.
+         * @param k the number of nodes that should share a page
+         */
+        private void keepTogether(int k) {
+            if (pageSize != 0 && k <= slotsPerPage && added % slotsPerPage + k > slotsPerPage)
+                added += slotsPerPage - added % slotsPerPage;
+        }
+
+        /**
+         * Adds n at the next position.
+         * @param n the node
+         * @return the address n is written to
+         * @throws IOException
+         */
+        private long add(Node n) throws IOException {
+            long addr = address(added);
+            if (addr + nodeSize() > blockStart + block.capacity()) {
+                write(block.capacity());
+                blockStart += block.capacity();
+            }
+            int at = (int) (addr - blockStart);
+            block.position(at);
+            n.encode(block);
+            if (pageSize != 0) {
+                //mark the slot used in the map at the start of its page
+                int slot = (int) (added % slotsPerPage);
+                int map = at / pageSize * pageSize + slot / 8;
+                block.put(map, (byte) (block.get(map) | 1 << (slot & 7)));
+            }
+            added++;
+            stats.nodeWrites.increment();
+            return addr;
+        }
+
+        /**
+         * Writes a node added before again, in the block if it is still there.
+         * @param addr the address add() returned for the node
+         * @param n the node
+         * @throws IOException
+         */
+        private void rewrite(long addr, Node n) throws IOException {
+            if (addr >= blockStart) {
+                block.position((int) (addr - blockStart));
+                n.encode(block);
+                return;
+            }
+            ByteBuffer record = ByteBuffer.allocate(nodeSize());
+            n.encode(record);
+            record.flip();
+            if (file == null)
+                writeBlock(addr, record);
+            else
+                while (record.hasRemaining())
+                    file.write(record, addr + record.position());
+        }
+
+        /**
+         * Writes the nodes not yet written.
+         * @return the end of the last node
+         * @throws IOException
+         */
+        private long finish() throws IOException {
+            long end = added == 0 ? base : address(added - 1) + nodeSize();
+            write((int) (end - blockStart));
+            return end;
+        }
+
+        //writes the first n bytes of the block at blockStart and zeroes the block
+        private void write(int n) throws IOException {
+            block.clear().limit(n);
+            if (file == null)
+                writeBlock(blockStart, block);
+            else
+                while (block.hasRemaining())
+                    file.write(block, blockStart + block.position());
+            Arrays.fill(block.array(), 0, n, (byte) 0);
+            block.clear();
+        }
+
+        /**
+         * Replaces the old child references of the nodes written to the file with their new
+         * addresses. Skipped slots hold only zeros, which are left alone.
+         * @param moved the new address of every old one
+         * @throws IOException
+         */
+        private void fixReferences(AddressMap moved) throws IOException {
+            long end = added == 0 ? base : address(added - 1) + nodeSize();
+            long i = 0;
+            for (long pos = base; pos < end; pos += block.limit()) {
+                block.clear();
+                block.limit((int) Math.min(block.capacity(), end - pos));
+                while (block.hasRemaining())
+                    if (file.read(block, pos + block.position()) < 0)
+                        throw new EOFException("compacted file ended at " + (pos + block.position()));
+                for (; i < added && address(i) < pos + block.limit(); i++) {
+                    int at = (int) (address(i) - pos);
+                    for (int ref = at + leftOffset; ref <= at + leftOffset + 8; ref += 8) {
+                        long child = block.getLong(ref);
+                        if (child != 0)
+                            block.putLong(ref, moved.get(child));
+                    }
+                }
+                block.rewind();
+                while (block.hasRemaining())
+                    file.write(block, pos + block.position());
+            }
+        }
+    }
+
+    /**
+     * The private recursive helper method for bulkLoad() that loads the positions lo to hi - 1.
+     * @param lo the first in-order position of the subtree
+     * @param hi one past the last in-order position of the subtree
+     * @param out the writer of the nodes, which puts in-order position i at out.address(i)
+     * @param records the records still to be loaded
+     * @param lastKey the key of the previous record
+     * @return the root of the subtree, or null if it is empty
+     * @throws IOException
+     */
+    private Node load(long lo, long hi, NodeWriter out, Iterator<Record> records, long[] lastKey) throws IOException {
+        if (lo >= hi)
+            return null;
+        long mid = (lo + hi - 1) >>> 1;
+        Node l = load(lo, mid, out, records, lastKey);
+
+        //the node at mid, its children are the middles of the ranges on each side
+        if (!records.hasNext())
+            throw new IllegalArgumentException("fewer than " + hi + " records");
+        Record rec = records.next();
+        if (rec.key <= lastKey[0])
+            throw new IllegalArgumentException("key " + rec.key + " is not greater than " + lastKey[0]);
+        checkChars(rec.stringFields);
+        lastKey[0] = rec.key;
+        if (filter != null)
+            filter.add(rec.key);
+        Node n = new Node(0, rec.key, 0, rec.stringFields, rec.intFields);
+        if (lo < mid)
+            n.left = out.address((lo + mid - 1) >>> 1);
+        if (mid + 1 < hi)
+            n.right = out.address((mid + hi) >>> 1);
+        n.height = 63 - Long.numberOfLeadingZeros(hi - lo);
+        n.size = (int) (hi - lo);
+        long addr = out.add(n);
+
+        Node r = load(mid + 1, hi, out, records, lastKey);
+        //the aggregates take in the right subtree, which is only loaded after n is written
+        if (aggregateFields.length > 0) {
+            summarize(n, l, r);
+            out.rewrite(addr, n);
+        }
+        return n;
+    }
+
+    /**
+     * Rewrites the tree file with only the live nodes, laid out for fast root to leaf walks,
+     * and truncates it. The free list is dropped since no free space is left.
+     * The nodes are grouped into clusters of as many levels as fit in a disk page: the top
+     * levels of the tree form the first cluster in breadth-first order, and below it each
+     * cluster is followed by the clusters of its subtrees, left to right, so a subtree is
+     * stored in one stretch of the file and a walk to a leaf touches about one page per cluster.
+     * The new file is written beside the old one and then renamed over it, so a crash leaves
+     * one or the other. Changes and lookups wait for the compaction, and in copy-on-write mode
+     * it waits for open snapshots and cursors to be closed. Cursors opened before it are invalid.
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        long start = System.nanoTime();
+        try {
+            lockWrite();
+            try {
+                modCount++;
+                //a running warm-up holds addresses that are about to change
+                warmUps++;
+                if (copyOnWrite)
+                    excludeReaders();
+                try {
+                    //every change must be in the tree file before it is copied
+                    if (cache != null)
+                        cache.flush();
+                    if (pages != null)
+                        pages.flushPages();
+                    if (log != null)
+                        log.force();
+
+                    File tmp = new File(fileName + ".compact");
+                    long newRoot;
+                    try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                        AddressMap moved = new AddressMap();
+                        int headerSize = headerSize();
+                        //a paged file keeps its first page for the header
+                        NodeWriter writer = new NodeWriter(out, pageSize != 0 ? pageSize : headerSize);
+                        writeClusters(writer, moved);
+                        writer.finish();
+                        writer.fixReferences(moved);
+                        newRoot = root == 0 ? 0 : moved.get(root);
+
+                        //the header is the old one pointing at the new root, with an empty free list
+                        ByteBuffer header = ByteBuffer.allocate(headerSize);
+                        storage.read(0, header);
+                        header.putLong(headerOffset(), newRoot);
+                        header.putLong(headerOffset() + 8, 0);
+                        header.flip();
+                        while (header.hasRemaining())
+                            out.write(header, header.position());
+                        out.force(true);
+                    }
+
+                    //swap the files and reopen
+                    storage.close();
+                    Files.move(tmp.toPath(), new File(fileName).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    f = new RandomAccessFile(new File(fileName), "rw");
+                    storage = openStorage(fileName, options);
+                    if (pageSize != 0)
+                        openPages();
+                    root = newRoot;
+                    free = 0;
+                    retired.clear();
+                    if (topNodes != null)
+                        topNodes.clear();
+                    if (cache != null)
+                        cache = new NodeCache(options.cacheSize, options.writeBack);
+                    if (copyOnWrite)
+                        epoch++;
+                } finally {
+                    if (copyOnWrite)
+                        admitReaders();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            warmUp();
+        } finally {
+            stats.record(TreeStats.COMPACT, start);
+        }
+    }
+
+    /**
+     * Writes the live nodes in cluster order, still holding their old child references,
+     * and records where each one went. In a paged file each cluster goes into a single page.
+     * @param out the writer of the new file
+     * @param moved filled with the new address of every old one
+     * @throws IOException
+     */
+    private void writeClusters(NodeWriter out, AddressMap moved) throws IOException {
+        //the most levels whose full binary tree fits in a page
+        int perPage = pageSize != 0 ? slotsPerPage : PAGE_SIZE / nodeSize();
+        int levels = Math.max(1, 31 - Integer.numberOfLeadingZeros(perPage + 1));
+
+        ArrayDeque<Long> clusters = new ArrayDeque<>();
+        if (root != 0)
+            clusters.push(root);
+        ArrayList<Node> cluster = new ArrayList<>();
+        ArrayList<Long> subtrees = new ArrayList<>();
+        while (!clusters.isEmpty()) {
+            //one cluster, breadth first
+            cluster.clear();
+            subtrees.clear();
+            cluster.add(readNode(clusters.pop()));
+            int levelStart = 0;
+            for (int depth = 0; depth < levels && levelStart < cluster.size(); depth++) {
+                int levelEnd = cluster.size();
+                for (int i = levelStart; i < levelEnd; i++) {
+                    Node n = cluster.get(i);
+                    for (long child : new long[] {n.left, n.right})
+                        if (child == 0)
+                            continue;
+                        else if (depth + 1 < levels)
+                            cluster.add(readNode(child));
+                        else
+                            subtrees.add(child);
+                }
+                levelStart = levelEnd;
+            }
+            out.keepTogether(cluster.size());
+            for (Node n : cluster)
+                moved.put(n.addr, out.add(n));
+            //the leftmost subtree comes out next
+            for (int i = subtrees.size() - 1; i >= 0; i--)
+                clusters.push(subtrees.get(i));
+        }
+    }
+
+    /**
+     * An open addressing map from old node addresses to new ones, used by compact().
+     * Addresses are never 0, so 0 marks an empty entry.
+     */
+    private static class AddressMap {
+        private long[] keys = new long[1024];
+        private long[] values = new long[1024];
+        private int size;
+
+        private int find(long key) {
+            int mask = keys.length - 1;
+            int i = Long.hashCode(key * 0x9E3779B97F4A7C15L) & mask;
+            while (keys[i] != 0 && keys[i] != key)
+                i = (i + 1) & mask;
+            return i;
+        }
+
+        private void put(long key, long value) {
+            //keep the table at most half full
+            if (2 * (size + 1) > keys.length) {
+                long[] oldKeys = keys, oldValues = values;
+                keys = new long[oldKeys.length * 2];
+                values = new long[oldKeys.length * 2];
+                for (int i = 0; i < oldKeys.length; i++)
+                    if (oldKeys[i] != 0) {
+                        int j = find(oldKeys[i]);
+                        keys[j] = oldKeys[i];
+                        values[j] = oldValues[i];
+                    }
+            }
+            int i = find(key);
+            if (keys[i] == 0) {
+                keys[i] = key;
+                size++;
+            }
+            values[i] = value;
+        }
+
+        private long get(long key) {
+            return values[find(key)];
+        }
+    }
+
+    /**
+     * print the contents of the nodes in the tree is ascending order of the key
+     * do not print the null characters
+     * @throws IOException
+     */
+    public void print() throws IOException {
+        lockRead();
+        try {
+            print(root);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    /**
+     * the private recursive helper method for the print() function
+     * @param addr the address of the current node
+     * @throws IOException
+     */
+    private void print(long addr) throws IOException {
+        //if null, return
+        if (addr == 0)
+            return;
+
+        //else print contents from smallest(left) to greatest(right)
+        Node n = peekNode(addr);
+        print(n.left);
+        System.out.println(n);
+        print(n.right);
+}
+
+    /**
+     * Passes every record of the tree to action on the threads of the common ForkJoinPool,
+     * see forEachParallel(pool, action).
+     * @param action called once for each record, possibly from several threads at once
+     * @throws IOException
+     */
+    public void forEachParallel(Consumer<Record> action) throws IOException {
+        forEachParallel(ForkJoinPool.commonPool(), action);
+    }
+
+    /**
+     * Passes every record of the tree to action on the threads of pool, in no particular order.
+     * The work is split at subtree boundaries: a subtree of height PARALLEL_HEIGHT or more is
+     * split into its two child subtrees and its root, and smaller ones are walked by one
+     * thread. The tree stays as it is for the whole pass, under the read lock or, in
+     * copy-on-write mode, a pin, which the workers read under.
+     * action may look records up in the tree. Outside copy-on-write mode it may not change the
+     * tree, since the change would wait for the end of the pass, so a change made from action
+     * throws an IllegalStateException instead.
+     * @param pool the pool the work runs on
+     * @param action called once for each record, possibly from several threads at once
+     * @throws IOException
+     * @throws IllegalStateException if action changes the tree outside copy-on-write mode
+     */
+    public void forEachParallel(ForkJoinPool pool, Consumer<Record> action) throws IOException {
+        long e = copyOnWrite ? pin() : -1;
+        if (!copyOnWrite)
+            lockRead();
+        try {
+            if (root != 0)
+                pool.invoke(new Visit(root, action));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            if (copyOnWrite)
+                unpin(e);
+            else
+                unlockRead();
+        }
+    }
+
+    /**
+     * The task of forEachParallel() that visits one subtree, forking the halves of a tall one.
+     */
+    private class Visit extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final long addr; //the root of the subtree
+
+        private final Consumer<Record> action;
+
+        private Visit(long addr, Consumer<Record> action) {
+            this.addr = addr;
+            this.action = action;
+        }
+
+        protected void compute() {
+            int[] depth = visits.get();
+            depth[0]++;
+            try {
+                Node n = peekNode(addr);
+                if (n.height < PARALLEL_HEIGHT) {
+                    walk(n);
+                    return;
+                }
+                Visit left = n.left == 0 ? null : new Visit(n.left, action);
+                if (left != null)
+                    left.fork();
+                action.accept(n.toRecord());
+                if (n.right != 0)
+                    new Visit(n.right, action).compute();
+                if (left != null)
+                    left.join();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                depth[0]--;
+            }
+        }
+
+        //visits the subtree of n in key order on this thread
+        private void walk(Node n) throws IOException {
+            ArrayDeque<Node> stack = new ArrayDeque<>();
+            while (n != null || !stack.isEmpty()) {
+                //go down the left spine, then take the lowest node and move to its right subtree
+                while (n != null) {
+                    stack.push(n);
+                    n = n.left == 0 ? null : peekNode(n.left);
+                }
+                n = stack.pop();
+                action.accept(n.toRecord());
+                n = n.right == 0 ? null : peekNode(n.right);
+            }
+        }
+    }
+
+    /**
+     * @return true if this thread is running a forEachParallel() visit under the read lock,
+     * which the pass holds for it
+     */
+    private boolean inVisit() {
+        return !copyOnWrite && visits.get()[0] > 0;
+    }
+
+    //takes the read lock, unless a visit running on this thread already has it through its pass,
+    //where a writer waiting for the pass would otherwise keep this thread out for good
+    private void lockRead() {
+        if (!inVisit())
+            lock.readLock().lock();
+    }
+
+    private void unlockRead() {
+        if (!inVisit())
+            lock.readLock().unlock();
+    }
+
+    /**
+     * Takes the write lock for a change.
+     * @throws IllegalStateException if a visit running on this thread holds the read lock,
+     * which would keep the change waiting for good
+     */
+    private void lockWrite() {
+        if (inVisit())
+            throw new IllegalStateException("the tree cannot change inside forEachParallel() unless it is copy-on-write");
+        lock.writeLock().lock();
+    }
+
+    /**
+     * Makes a spliterator over every record of the tree in ascending key order, for
+     * StreamSupport.stream(tree.spliterator(), true) and the like. It splits at subtree
+     * boundaries, handing the left subtree of its first subtree to the new part, so the
+     * parts of a parallel stream start near the root and each reads its own nodes once.
+     * Each step holds the read lock, and a step made after the tree was changed throws a
+     * ConcurrentModificationException, since the nodes the parts hold may be gone. In copy-on-write mode the parts see the version current when it was
+     * made, which stays pinned until every part has been used up.
+     * @return the spliterator
+     * @throws IOException
+     */
+    public Spliterator<Record> spliterator() throws IOException {
+        long e = copyOnWrite ? pin() : -1;
+        try {
+            Lock l = copyOnWrite || inVisit() ? null : lock.readLock();
+            if (l != null)
+                l.lock();
+            try {
+                Parts parts = new Parts(e, modCount, new AtomicInteger(1));
+                if (root != 0)
+                    parts.items.add(new Part(peekNode(root), true));
+                parts.done = parts.items.isEmpty();
+                if (parts.done)
+                    parts.release();
+                return parts;
+            } finally {
+                if (l != null)
+                    l.unlock();
+            }
+        } catch (IOException | RuntimeException ex) {
+            if (copyOnWrite)
+                unpin(e);
+            throw ex;
+        }
+    }
+
+    //a node, standing either for itself alone or for its whole subtree
+    private static class Part {
+        private final Node node;
+        private final boolean subtree;
+
+        private Part(Node node, boolean subtree) {
+            this.node = node;
+            this.subtree = subtree;
+        }
+    }
+
+    /**
+     * The spliterator made by spliterator(), holding the rest of its range as a list of parts
+     * in key order. Stepping expands a leading subtree into its left subtree, its root and its
+     * right subtree until a single node comes first.
+     */
+    private class Parts implements Spliterator<Record> {
+        private final ArrayDeque<Part> items = new ArrayDeque<>();
+        private final long pinned; //the pinned epoch in copy-on-write mode, -1 otherwise
+        private final long expected; //the modCount the parts were made at
+        private final AtomicInteger live; //the parts of the pin not used up yet
+        private boolean done; //true once this part has been used up
+
+        private Parts(long pinned, long expected, AtomicInteger live) {
+            this.pinned = pinned;
+            this.expected = expected;
+            this.live = live;
+        }
+
+        //fails once the tree was changed, called under the read lock
+        private void check() {
+            if (!copyOnWrite && modCount != expected)
+                throw new ConcurrentModificationException("the tree was changed while a spliterator was in use");
+        }
+
+        //ends this part, and releases the pin once no part is left
+        private void release() {
+            if (live.decrementAndGet() == 0 && pinned >= 0)
+                unpin(pinned);
+        }
+
+        public boolean tryAdvance(Consumer<? super Record> action) {
+            Lock l = copyOnWrite || inVisit() ? null : lock.readLock();
+            Record r = null;
+            if (l != null)
+                l.lock();
+            try {
+                if (!items.isEmpty())
+                    check();
+                while (r == null && !items.isEmpty()) {
+                    Part p = items.pollFirst();
+                    if (!p.subtree)
+                        r = p.node.toRecord();
+                    else
+                        expand(p.node);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                if (l != null)
+                    l.unlock();
+            }
+            if (r == null) {
+                if (!done) {
+                    done = true;
+                    release();
+                }
+                return false;
+            }
+            action.accept(r);
+            return true;
+        }
+
+        //puts the left subtree, the root and the right subtree of n at the front
+        private void expand(Node n) throws IOException {
+            if (n.right != 0)
+                items.addFirst(new Part(peekNode(n.right), true));
+            items.addFirst(new Part(n, false));
+            if (n.left != 0)
+                items.addFirst(new Part(peekNode(n.left), true));
+        }
+
+        public Spliterator<Record> trySplit() {
+            if (done)
+                return null;
+            Lock l = copyOnWrite || inVisit() ? null : lock.readLock();
+            if (l != null)
+                l.lock();
+            try {
+                check();
+                //a lone subtree is opened up so its left subtree can go
+                if (items.size() == 1 && items.peekFirst().subtree)
+                    expand(items.pollFirst().node);
+                if (items.size() < 2 || estimateSize() < 2)
+                    return null;
+
+                //hand over the leading parts making up about half of the estimate
+                long half = estimateSize() / 2;
+                long taken = 0;
+                Parts prefix = new Parts(pinned, expected, live);
+                while (items.size() > 1 && (taken == 0 || taken + estimate(items.peekFirst()) <= half)) {
+                    Part p = items.pollFirst();
+                    taken += estimate(p);
+                    prefix.items.addLast(p);
+                }
+                live.incrementAndGet();
+                return prefix;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                if (l != null)
+                    l.unlock();
+            }
+        }
+
+        //the number of records in a part, exact in sized files and an upper bound otherwise
+        private long estimate(Part p) {
+            if (!p.subtree)
+                return 1;
+            return sized ? p.node.size : (1L << Math.min(62, p.node.height + 1)) - 1;
+        }
+
+        public long estimateSize() {
+            long total = 0;
+            for (Part p : items)
+                total += estimate(p);
+            return total;
+        }
+
+        public int characteristics() {
+            return ORDERED | SORTED | DISTINCT | NONNULL;
+        }
+
+        public Comparator<? super Record> getComparator() {
+            return Comparator.comparingInt(Record::getKey);
+        }
+    }
+
+    /**
+     * Streams the records with keys from lo to hi (inclusive) in ascending key order.
+     * @param lo the smallest key wanted
+     * @param hi the largest key wanted
+     * @return a cursor positioned before the first record in the range
+     * @throws IOException
+     */
+    public Cursor scan(int lo, int hi) throws IOException {
+        return scan(lo, hi, false);
+    }
+
+    /**
+     * Streams the records with keys from lo to hi (inclusive) in ascending or descending key order.
+     * @param lo the smallest key wanted
+     * @param hi the largest key wanted
+     * @param reverse true to go from hi down to lo
+     * @return a cursor positioned before the first record in the range
+     * @throws IOException
+     */
+    public Cursor scan(int lo, int hi, boolean reverse) throws IOException {
+        long start = System.nanoTime();
+        try {
+            //in copy-on-write mode the cursor pins the current version until it is used up or closed
+            if (copyOnWrite) {
+                long e = pin();
+                try {
+                    return new Cursor(root, lo, hi, reverse, e);
+                } catch (IOException | RuntimeException ex) {
+                    unpin(e);
+                    throw ex;
+                }
+            }
+            lockRead();
+            try {
+                return new Cursor(root, lo, hi, reverse, -1);
+            } finally {
+                unlockRead();
+            }
+        } finally {
+            stats.record(TreeStats.SCAN, start);
+        }
+    }
+
+    /**
+     * An iterator over a key range that reads nodes only as it reaches them.
+     * It keeps the nodes still to be visited on an explicit stack, so it starts with one
+     * root to leaf descent to the first key and can be abandoned at any point.
+     * Each step holds the read lock. Changes made to the tree between steps may or may not be
+     * seen by the cursor, and since they can move or reuse the nodes on its stack, a cursor
+     * that finds the tree changed builds its stack again from the root, going on from the
+     * key after the last one it returned.
+     * In copy-on-write mode the cursor takes no lock and sees exactly the version that was
+     * current when it was made; close it if it is abandoned before the end of the range.
+     */
+    public class Cursor implements Iterator<Record>, AutoCloseable {
+        private final int lo;
+        private final int hi;
+        private final boolean reverse;
+        private final ArrayDeque<Node> stack = new ArrayDeque<>();
+        private long pinned; //the epoch this cursor pinned, -1 if it holds no pin
+        private long seen; //the modCount the stack was built at
+        private boolean started; //true once a record has been returned
+        private int last; //the key of the last record returned
+        private boolean closed;
+
+        /**
+         * Descends to the first key of the range, stacking the nodes still to be visited.
+         * @param from the address of the root to start at
+         * @param lo the smallest key wanted
+         * @param hi the largest key wanted
+         * @param reverse true to go from hi down to lo
+         * @param pinned the epoch pinned for this cursor, or -1
+         * @throws IOException
+         */
+        private Cursor(long from, int lo, int hi, boolean reverse, long pinned) throws IOException {
+            this.lo = lo;
+            this.hi = hi;
+            this.reverse = reverse;
+            this.pinned = pinned;
+            seek(from);
+        }
+
+        //stacks the nodes of the range still to be visited, those past the last key returned if there is one
+        private void seek(long from) throws IOException {
+            stack.clear();
+            seen = modCount;
+            long addr = from;
+            while (addr != 0) {
+                Node n = peekNode(addr);
+                //a node inside the bound is visited after the subtree on its near side
+                boolean inside = reverse ? (started ? n.key < last : n.key <= hi) : (started ? n.key > last : n.key >= lo);
+                if (inside) {
+                    stack.push(n);
+                    addr = reverse ? n.right : n.left;
+                }
+                else
+                    addr = reverse ? n.left : n.right;
+            }
+        }
+
+        //true if there is another record in the range, called holding the read lock unless in copy-on-write mode
+        private boolean more() throws IOException {
+            if (closed)
+                return false;
+            //the versions copy-on-write readers see never change
+            if (!copyOnWrite && seen != modCount)
+                seek(root);
+            if (stack.isEmpty())
+                return false;
+            int k = stack.peek().key;
+            return reverse ? k >= lo : k <= hi;
+        }
+
+        /**
+         * @return true if there is another record in the range
+         * @throws UncheckedIOException if the tree changed and its nodes cannot be read
+         */
+        public boolean hasNext() {
+            Lock l = copyOnWrite || inVisit() ? null : lock.readLock();
+            if (l != null)
+                l.lock();
+            try {
+                if (more())
+                    return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                if (l != null)
+                    l.unlock();
+            }
+            close();
+            return false;
+        }
+
+        /**
+         * Releases the version this cursor pinned. Called by hasNext() at the end of the range.
+         */
+        public void close() {
+            closed = true;
+            stack.clear();
+            if (pinned >= 0) {
+                unpin(pinned);
+                pinned = -1;
+            }
+        }
+
+        /**
+         * @return the next record in the range
+         * @throws UncheckedIOException if the next node cannot be read
+         */
+        public Record next() {
+            //the versions copy-on-write readers see never change, so they need no lock
+            Lock l = copyOnWrite || inVisit() ? null : lock.readLock();
+            if (l != null)
+                l.lock();
+            try {
+                if (!more())
+                    throw new NoSuchElementException();
+                Node n = stack.pop();
+                //stack the near spine of the subtree on the far side of n
+                long addr = reverse ? n.left : n.right;
+                while (addr != 0) {
+                    Node child = peekNode(addr);
+                    stack.push(child);
+                    addr = reverse ? child.right : child.left;
+                }
+                started = true;
+                last = n.key;
+                return n.toRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                if (l != null)
+                    l.unlock();
+            }
+        }
+    }
+
+    /**
+     * Pins the current version of the tree for reading. Changes made after this call are not
+     * seen through the snapshot, and the nodes it can reach are not reused until it is closed.
+     * @return a snapshot of the current version
+     * @throws IllegalStateException if the tree is not in copy-on-write mode
+     */
+    public Snapshot snapshot() {
+        if (!copyOnWrite)
+            throw new IllegalStateException("snapshots need copy-on-write mode");
+        long e = pin();
+        return new Snapshot(e, root);
+    }
+
+    /**
+     * A fixed version of a copy-on-write tree. Reading it never takes the tree's lock.
+     * It must be closed, until then the nodes replaced since it was taken stay allocated.
+     */
+    public class Snapshot implements AutoCloseable {
+        private final long epoch;
+        private final long root;
+        private boolean closed;
+
+        private Snapshot(long epoch, long root) {
+            this.epoch = epoch;
+            this.root = root;
+        }
+
+        /**
+         * Looks up k in this version, see AVLTree.find().
+         * @param k the key value being searched for
+         * @param view the view to fill, made by newRecordView()
+         * @return true if k was found
+         * @throws IOException
+         */
+        public boolean find(int k, RecordView view) throws IOException {
+            return AVLTree.this.find(root, k, view);
+        }
+
+        /**
+         * Streams a key range of this version, see AVLTree.scan().
+         * The cursor is only valid while the snapshot is open.
+         * @param lo the smallest key wanted
+         * @param hi the largest key wanted
+         * @param reverse true to go from hi down to lo
+         * @return a cursor positioned before the first record in the range
+         * @throws IOException
+         */
+        public Cursor scan(int lo, int hi, boolean reverse) throws IOException {
+            return new Cursor(root, lo, hi, reverse, -1);
+        }
+
+        /**
+         * Releases this version so the nodes only it can reach may be reused.
+         */
+        public void close() {
+            if (!closed) {
+                closed = true;
+                unpin(epoch);
+            }
+        }
+    }
+
+    /**
+     * Looks up k and copies its fields into view without allocating any objects.
+     * Nodes on the way down are read straight from the cache or the record buffer,
+     * so a caller that reuses one view per thread creates no garbage per lookup.
+     * @param k the key value being searched for
+     * @param view the view to fill, made by newRecordView()
+     * @return true if k was found, false if it is not in the tree and view is unchanged
+     * @throws IOException
+     */
+    public boolean find(int k, RecordView view) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (!mayHold(k))
+                return false;
+            //pin() comes first, so the root is read after it
+            if (copyOnWrite) {
+                long e = pin();
+                try {
+                    return find(root, k, view);
+                } finally {
+                    unpin(e);
+                }
+            }
+            lockRead();
+            try {
+                return find(root, k, view);
+            } finally {
+                unlockRead();
+            }
+        } finally {
+            stats.record(TreeStats.FIND, start);
+        }
+    }
+
+    /**
+     * Counts the keys in the tree smaller than k, in O(log n) node reads.
+     * The tree must have been created with Options.orderStatistics().
+     * @param k any key value, in the tree or not
+     * @return the number of smaller keys, which is the position of k in key order if it is in the tree
+     * @throws IOException
+     */
+    public int rank(int k) throws IOException {
+        checkSized();
+        if (copyOnWrite) {
+            long e = pin();
+            try {
+                return rank(root, k);
+            } finally {
+                unpin(e);
+            }
+        }
+        lockRead();
+        try {
+            return rank(root, k);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    /**
+     * Finds the key at a position in key order, in O(log n) node reads.
+     * The tree must have been created with Options.orderStatistics().
+     * @param i the position, 0 for the smallest key
+     * @return the key with i smaller keys
+     * @throws IOException
+     * @throws IndexOutOfBoundsException if i is negative or not less than the number of keys
+     */
+    public int select(int i) throws IOException {
+        checkSized();
+        if (copyOnWrite) {
+            long e = pin();
+            try {
+                return select(root, i);
+            } finally {
+                unpin(e);
+            }
+        }
+        lockRead();
+        try {
+            return select(root, i);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    /**
+     * Counts the keys from lo to hi (inclusive), in O(log n) node reads.
+     * The tree must have been created with Options.orderStatistics().
+     * @param lo the smallest key counted
+     * @param hi the largest key counted
+     * @return the number of keys in the range, 0 if lo is greater than hi
+     * @throws IOException
+     */
+    public int countRange(int lo, int hi) throws IOException {
+        checkSized();
+        if (copyOnWrite) {
+            long e = pin();
+            try {
+                return countRange(root, lo, hi);
+            } finally {
+                unpin(e);
+            }
+        }
+        lockRead();
+        try {
+            return countRange(root, lo, hi);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    /**
+     * Sums an int field over the records with keys from lo to hi (inclusive) and finds its
+     * smallest and largest value there, in O(log n) node reads.
+     * The tree must have been created with the field in Options.aggregates().
+     * @param lo the smallest key taken in
+     * @param hi the largest key taken in
+     * @param field the position of the int field
+     * @return the count, sum, minimum and maximum over the range
+     * @throws IOException
+     */
+    public Aggregate aggregate(int lo, int hi, int field) throws IOException {
+        int j = 0;
+        while (j < aggregateFields.length && aggregateFields[j] != field)
+            j++;
+        if (j == aggregateFields.length)
+            throw new IllegalArgumentException(fileName + " does not aggregate int field " + field + ", see Options.aggregates()");
+        if (copyOnWrite) {
+            long e = pin();
+            try {
+                return aggregate(root, lo, hi, j);
+            } finally {
+                unpin(e);
+            }
+        }
+        lockRead();
+        try {
+            return aggregate(root, lo, hi, j);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    private void checkSized() {
+        if (!sized)
+            throw new IllegalStateException(fileName + " does not store subtree sizes, see Options.orderStatistics()");
+    }
+
+    /**
+     * The private helper method for rank() that counts in the tree below from.
+     * Going right past a node counts it and its left subtree, which is its size less the size
+     * of the right child, so the size is taken from the right child when it is read next.
+     * @param from the address of the root to start at
+     * @param k the key value
+     * @return the number of smaller keys
+     * @throws IOException
+     */
+    private int rank(long from, int k) throws IOException {
+        int count = 0;
+        boolean wentRight = false;
+        long addr = from;
+        while (addr != 0) {
+            Node n = peekNode(addr);
+            if (wentRight)
+                count -= n.size;
+            wentRight = k > n.key;
+            if (wentRight)
+                count += n.size;
+            addr = wentRight ? n.right : n.left;
+        }
+        return count;
+    }
+
+    /**
+     * The private helper method for aggregate() that works in the tree below from.
+     * The walk goes down to the highest node in the range, then down from it towards lo and
+     * towards hi. Every node on those two walks that is in the range is taken in along with
+     * the stored aggregates of its subtree on the inner side, which lies wholly in the range.
+     * @param from the address of the root to start at
+     * @param lo the smallest key taken in
+     * @param hi the largest key taken in
+     * @param j the index of the field among the aggregated ones
+     * @return the aggregates over the range
+     * @throws IOException
+     */
+    private Aggregate aggregate(long from, int lo, int hi, int j) throws IOException {
+        Aggregate a = new Aggregate();
+        if (lo > hi)
+            return a;
+        //find the highest node in the range
+        long addr = from;
+        Node top = null;
+        while (addr != 0 && top == null) {
+            Node n = peekNode(addr);
+            if (hi < n.key)
+                addr = n.left;
+            else if (lo > n.key)
+                addr = n.right;
+            else
+                top = n;
+        }
+        if (top == null)
+            return a;
+        a.add(top.intFields[aggregateFields[j]]);
+
+        //towards lo, a node in the range brings its right subtree
+        addr = top.left;
+        while (addr != 0) {
+            Node n = peekNode(addr);
+            if (n.key >= lo) {
+                a.add(n.intFields[aggregateFields[j]]);
+                if (n.right != 0)
+                    a.add(peekNode(n.right), j);
+                addr = n.left;
+            }
+            else
+                addr = n.right;
+        }
+
+        //towards hi, a node in the range brings its left subtree
+        addr = top.right;
+        while (addr != 0) {
+            Node n = peekNode(addr);
+            if (n.key <= hi) {
+                a.add(n.intFields[aggregateFields[j]]);
+                if (n.left != 0)
+                    a.add(peekNode(n.left), j);
+                addr = n.right;
+            }
+            else
+                addr = n.left;
+        }
+        return a;
+    }
+
+    /**
+     * The private helper method for select() that looks in the tree below from.
+     * @param from the address of the root to start at
+     * @param i the position
+     * @return the key at position i
+     * @throws IOException
+     */
+    private int select(long from, int i) throws IOException {
+        Node n = from == 0 ? null : peekNode(from);
+        if (i < 0 || i >= size(n))
+            throw new IndexOutOfBoundsException("position " + i + " in a tree of " + size(n) + " keys");
+        while (true) {
+            //the left subtree holds the positions before n
+            Node l = n.left == 0 ? null : peekNode(n.left);
+            if (i < size(l))
+                n = l;
+            else if (i == size(l))
+                return n.key;
+            else {
+                i -= size(l) + 1;
+                n = peekNode(n.right);
+            }
+        }
+    }
+
+    /**
+     * The private helper method for countRange() that counts in the tree below from.
+     * @param from the address of the root to start at
+     * @param lo the smallest key counted
+     * @param hi the largest key counted
+     * @return the number of keys in the range
+     * @throws IOException
+     */
+    private int countRange(long from, int lo, int hi) throws IOException {
+        if (lo > hi || from == 0)
+            return 0;
+        //the keys up to hi are all keys when hi is the largest int
+        int upTo = hi == Integer.MAX_VALUE ? peekNode(from).size : rank(from, hi + 1);
+        return upTo - rank(from, lo);
+    }
+
+    /**
+     * The private helper method for find() that looks in the tree below from.
+     * @param from the address of the root to start at
+     * @param k the key value being searched for
+     * @param view the view to fill
+     * @return true if k was found
+     * @throws IOException
+     */
+    private boolean find(long from, int k, RecordView view) throws IOException {
+        long addr = locate(from, k);
+        if (addr == 0)
+            return false;
+
+        //the cached node is only used until the next load, which may reuse it
+        Node top = topNodes == null ? null : topNodes.get(addr);
+        if (top != null)
+            view.fill(top);
+        else if (cache != null) {
+            CacheSegment s = cache.segment(addr);
+            synchronized (s) {
+                view.fill(s.load(addr));
+            }
+        }
+        else
+            view.fill(readRecord(addr));
+        return true;
+    }
+
+    /**
+     * Finds the address of the node holding k.
+     * Without a cache only the key of each node and the one child reference the descent
+     * follows are decoded, the fields of a node are left alone until it is known to hold k.
+     * Each node costs one read: of the front of the record in a version 2 file, and of the
+     * record up to its child references in a version 1 file.
+     * @param from the address of the root to start at
+     * @param k the key value being searched for
+     * @return the address of the node holding k, or 0 if k is not in the tree
+     * @throws IOException
+     */
+    private long locate(long from, int k) throws IOException {
+        long addr = from;
+        while (addr != 0) {
+            int key;
+            Node top = topNodes == null ? null : topNodes.get(addr);
+            //the top of the tree is in memory
+            if (top != null) {
+                key = top.key;
+                if (k != key)
+                    addr = k < key ? top.left : top.right;
+            }
+            //with a cache the whole node is at hand anyway
+            else if (cache != null) {
+                CacheSegment s = cache.segment(addr);
+                synchronized (s) {
+                    Node n = s.load(addr);
+                    key = n.key;
+                    if (k != key)
+                        addr = k < key ? n.left : n.right;
+                }
+            }
+            //version 2 keeps the key and child references together, so one small read gets them
+            else if (version == 2) {
+                ByteBuffer probe = wordBuffers.get();
+                probe.clear();
+                storage.read(addr, probe);
+                key = probe.getInt(0);
+                if (k != key)
+                    addr = probe.getLong(k < key ? 4 : 12);
+            }
+            //version 1 keeps them at either end of the record, so one read spans both
+            else {
+                ByteBuffer record = recordBuffers.get();
+                record.clear().limit(leftOffset + 16);
+                storage.read(addr, record);
+                key = record.getInt(0);
+                if (k != key)
+                    addr = record.getLong(k < key ? leftOffset : leftOffset + 8);
+            }
+            if (k == key)
+                return addr;
+        }
+        return 0;
+    }
+
+    /**
+     * @return a view sized for the records of this tree, to be reused across calls to find()
+     */
+    public RecordView newRecordView() {
+        return new RecordView();
+    }
+
+    /**
+     * A reusable holder for the fields of one record, filled in place by find().
+     * Each char field is a CharBuffer that find() leaves ready for reading, holding the
+     * characters up to the first null character.
+     */
+    public class RecordView {
+        private int key;
+        private final CharBuffer[] stringFields = new CharBuffer[numStringFields];
+        private final int[] intFields = new int[numIntFields];
+
+        private RecordView() {
+            for (int i = 0; i < numStringFields; i++)
+                stringFields[i] = CharBuffer.allocate(fieldLengths[i]);
+        }
+
+        /**
+         * @return the key of the record last found
+         */
+        public int getKey() {
+            return key;
+        }
+
+        /**
+         * @param i the index of the char field
+         * @return the characters of field i, without the null padding
+         */
+        public CharBuffer getStringField(int i) {
+            return stringFields[i];
+        }
+
+        /**
+         * @param i the index of the int field
+         * @return the value of int field i
+         */
+        public int getIntField(int i) {
+            return intFields[i];
+        }
+
+        //copies the fields of a node
+        private void fill(Node n) {
+            key = n.key;
+            for (int i = 0; i < numStringFields; i++) {
+                CharBuffer field = stringFields[i].clear();
+                for (char c : n.stringFields[i]) {
+                    if (c == '\0')
+                        break;
+                    field.put(c);
+                }
+                field.flip();
+            }
+            System.arraycopy(n.intFields, 0, intFields, 0, numIntFields);
+        }
+
+        //copies the fields of the encoded node in buf
+        private void fill(ByteBuffer buf) {
+            key = buf.getInt(0);
+            for (int i = 0; i < numStringFields; i++) {
+                CharBuffer field = stringFields[i].clear();
+                for (int j = 0; j < fieldLengths[i]; j++) {
+                    char c = getChar(buf, stringOffsets[i] + charBytes * j);
+                    if (c == '\0')
+                        break;
+                    field.put(c);
+                }
+                field.flip();
+            }
+            for (int i = 0; i < numIntFields; i++)
+                intFields[i] = buf.getInt(intOffset + 4 * i);
+        }
+    }
+
+    /**
+     * Used to get the char fields from a node that is associated with k.
+     * @param k the key value being searched for
+     * @return a LinkedList of Strings from the char field in the node with k.
+     * @throws IOException
+     */
+    public LinkedList<String> stringFind(int k) throws IOException {
+        //if the key isn't in the tree, return null
+        long start = System.nanoTime();
+        Node current = findNode(k);
+        stats.record(TreeStats.STRING_FIND, start);
+        if (current == null)
+            return null;
+
+        //load values of the target node into the LinkedList
+        LinkedList<String> list = new LinkedList<>();
+        for(int i = 0; i < numStringFields; i++) {
+            String str = "";
+            for(int j = 0; j < fieldLengths[i] -1 ; j++ ) {
+                //only add character if not null
+                if(current.stringFields[i][j] == '\0') break;
+                str += current.stringFields[i][j];
+            }
+            list.add(str);
+        }
+        return list;
+    }
+
+    /**
+     * Used to get the int fields from a node that is associated with k.
+     * @param k the key value being searched for
+     * @return a LinkedList of Integers from the int field in the node with k.
+     * @throws IOException
+     */
+    public LinkedList<Integer> intFind(int k) throws IOException {
+        //if the key isn't in the tree, return null
+        long start = System.nanoTime();
+        Node current = findNode(k);
+        stats.record(TreeStats.INT_FIND, start);
+        if (current == null)
+            return null;
+
+        //load int values into the LinkedList and return
+        LinkedList<Integer> list = new LinkedList<>();
+        for(int i = 0; i < numIntFields; i++) {
+            list.add(current.intFields[i]);
+        }
+        return list;
+    }
+
+    /**
+     * Declares an index on an int field, kept in files named after the tree file with ".idx" and
+     * the field number added. The records already in the tree are indexed now, and from then on
+     * insert and remove keep the index up to date. The index stays declared when the tree is
+     * reopened. Changes to an index are not logged with the tree, so an index that was not closed
+     * cleanly is built again when the tree is opened, and one that fails to follow a change is
+     * built again by the next insert or remove, with lookups scanning the tree until then.
+     * @param fieldIndex the position of the int field
+     * @throws IOException
+     */
+    public void createIndex(int fieldIndex) throws IOException {
+        checkIntField(fieldIndex);
+        lockWrite();
+        try {
+            if (indexes[fieldIndex] != null)
+                return;
+            indexes[fieldIndex] = new SecondaryIndex(indexName(fileName, fieldIndex), indexOptions());
+            if (indexes[fieldIndex].isFresh())
+                fillIndex(fieldIndex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the index on an int field and deletes its files. Does nothing if there is none.
+     * @param fieldIndex the position of the int field
+     * @throws IOException
+     */
+    public void dropIndex(int fieldIndex) throws IOException {
+        checkIntField(fieldIndex);
+        lockWrite();
+        try {
+            if (indexes[fieldIndex] == null)
+                return;
+            indexes[fieldIndex].close();
+            indexes[fieldIndex] = null;
+            SecondaryIndex.delete(indexName(fileName, fieldIndex));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //adds every record of the tree to the index on int field i, under the write lock
+    private void fillIndex(int i) throws IOException {
+        for (Cursor c = new Cursor(root, Integer.MIN_VALUE, Integer.MAX_VALUE, false, -1); c.hasNext(); ) {
+            Record r = c.next();
+            indexes[i].add(r.getIntFields()[i], r.getKey());
         }
     }
 
     /**
-     * Creates a new empty AVL tree stored in the file fname.
-     * The number of character string fields is stringFieldLengths.length.
-     * stringFieldLengths contains the length of each string field.
-     * @param fname name of new RandomAccessFile
-     * @param stringFieldsLengths character field lengths
-     * @param numIntFields2 number of int fields
+     * Brings the indexes up to date with a committed insert or remove, under the write lock.
+     * A stale index is built again from the tree instead, and an index the change fails to reach
+     * is marked stale. Every index is tried before the first failure is thrown.
+     * @param k the key inserted or removed
+     * @param values the int fields of the record, or null to only build the stale indexes again
+     * @param added true for an insert
      * @throws IOException
      */
-    public AVLTree(String fname, int[] stringFieldsLengths, int numIntFields2) throws IOException {
-        //create new RandomAccessFile that is allowed to read and write.
-        //delete any existing files of the same name
-        File path = new File(fname);
-        if(path.exists())
-            path.delete();
-
-        //instantiate properties of AVLTree
-        f = new RandomAccessFile(path, "rw");
-        fieldLengths = stringFieldsLengths;
-        numStringFields = stringFieldsLengths.length;
-        numIntFields = numIntFields2;
-        root = 0;
-        free = 0;
+    private void updateIndexes(int k, int[] values, boolean added) throws IOException {
+        Exception failure = null;
+        for (int i = 0; i < indexes.length; i++) {
+            if (indexes[i] == null)
+                continue;
+            try {
+                if (indexes[i].isStale())
+                    rebuildIndex(i);
+                else if (values != null && added)
+                    indexes[i].add(values[i], k);
+                else if (values != null)
+                    indexes[i].remove(values[i], k);
+            } catch (IOException | RuntimeException e) {
+                indexes[i].markStale();
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure != null)
+            throw (RuntimeException) failure;
+    }
 
-        //write currently known values to the file
-        f.seek(0);
-        f.writeLong(root);
-        f.writeLong(free);
-        f.writeInt(numStringFields);
-        for (int i : stringFieldsLengths)
-            f.writeInt(i);
+    //replaces the index on int field i with a new one filled from the tree, under the write lock
+    private void rebuildIndex(int i) throws IOException {
+        String name = indexName(fileName, i);
+        try {
+            indexes[i].close();
+        } catch (IOException e) {
+            //the files are thrown away, so it does not matter if they were not written out
+        }
+        SecondaryIndex.delete(name);
+        indexes[i] = new SecondaryIndex(name, indexOptions());
+        fillIndex(i);
+    }
 
-        f.writeInt(numIntFields);
+    private void checkIntField(int fieldIndex) {
+        if (fieldIndex < 0 || fieldIndex >= numIntFields)
+            throw new IllegalArgumentException("there is no int field " + fieldIndex);
     }
 
     /**
-     * reuse an existing tree stored in the file fname
-     * @param fname name of existing RandomAccessFile
+     * Finds the records whose int field fieldIndex holds value, see findByIntField(fieldIndex, lo, hi).
+     * @param fieldIndex the position of the int field
+     * @param value the value being searched for
+     * @return the records, empty if there are none
      * @throws IOException
      */
-    public AVLTree(String fname) throws IOException {
-        //open existing file and instantiate values
-        f = new RandomAccessFile(new File(fname), "rw");
-        f.seek(0);
-        root = f.readLong();
-        free = f.readLong();
-        numStringFields = f.readInt();
-        fieldLengths = new int[numStringFields];
-        for(int i = 0; i < numStringFields; i++)
-            fieldLengths[i] = f.readInt();
-        numIntFields = f.readInt();
+    public LinkedList<Record> findByIntField(int fieldIndex, int value) throws IOException {
+        return findByIntField(fieldIndex, value, value);
     }
 
     /**
-     * Insert k and the fields into the tree the string fields are null ('\0') padded.
-     * If k is in the tree do nothing
-     * PRE: the number and lengths of the sFields and iFields match the expected number and lengths
-     * @param k the key value being inserted
-     * @param sFields the char field being inserted
-     * @param iFields the int field being inserted
+     * Finds the records whose int field fieldIndex holds a value from lo to hi, in ascending
+     * order of that value. With an index on the field this takes O(log n) per value found and
+     * per record returned, without one, or while it is stale, the whole tree is scanned.
+     * The lookup holds the read lock, also in copy-on-write mode.
+     * @param fieldIndex the position of the int field
+     * @param lo the smallest value wanted
+     * @param hi the largest value wanted
+     * @return the records, empty if there are none
      * @throws IOException
      */
-    public void insert(int k, char[][] sFields, int[] iFields) throws IOException {
-        root = insert(root, k, sFields, iFields);
+    public LinkedList<Record> findByIntField(int fieldIndex, int lo, int hi) throws IOException {
+        checkIntField(fieldIndex);
+        LinkedList<Record> found = new LinkedList<>();
+        lockRead();
+        try {
+            if (indexes[fieldIndex] == null || indexes[fieldIndex].isStale()) {
+                //no index to trust, so look at every record and sort the matches by the value
+                for (Cursor c = new Cursor(root, Integer.MIN_VALUE, Integer.MAX_VALUE, false, -1); c.hasNext(); ) {
+                    Record r = c.next();
+                    int v = r.getIntFields()[fieldIndex];
+                    if (v >= lo && v <= hi)
+                        found.add(r);
+                }
+                found.sort(Comparator.comparingInt(r -> r.getIntFields()[fieldIndex]));
+                return found;
+            }
+            for (int k : indexes[fieldIndex].keys(lo, hi)) {
+                long addr = locate(root, k);
+                if (addr != 0) {
+                    Node n = peekNode(addr);
+                    found.add(n.toRecord());
+                }
+            }
+            return found;
+        } finally {
+            unlockRead();
+        }
     }
 
     /**
-     * A private and recursive helper method to insert a new node into the file and tree.
-     * Returns the address of root when done.
-     * @param r the address of the current node
-     * @param k the key value being inserted
-     * @param sFields the char field being inserted
-     * @param iFields the int field being inserted
-     * @return the address of the inserted node
+     * Replaces the int fields of the record with key k, leaving its place in the tree alone.
+     * Used by the indexes to change their entries.
+     * @param k the key of the record
+     * @param iFields the new int fields
+     * @return false if k is not in the tree
      * @throws IOException
      */
-    private long insert(long r, int k, char[][] sFields, int[] iFields) throws IOException {
-        Node node;
-
-        //When the end of a leaf is reached, get a free address and add node.
-        if(r == 0) {
-            node = new Node(0, k, 0, sFields, iFields);
-            long addr = removeFromFree();
-            node.height = height(node);
-            node.writeNode(addr);
-            return addr;
+    boolean setIntFields(int k, int[] iFields) throws IOException {
+        long tx = 0;
+        lockWrite();
+        try {
+            modCount++;
+            //walk down to the node holding k, remembering the path for copy-on-write
+            depth = 0;
+            long addr = root;
+            Node current = null;
+            while (addr != 0) {
+                Node node = readNode(addr);
+                if (k == node.key) {
+                    current = node;
+                    break;
+                }
+                push(node, k < node.key);
+                addr = k < node.key ? node.left : node.right;
+            }
+            if (current == null)
+                return false;
+
+            reclaim();
+            current.intFields = iFields;
+            if (aggregateFields.length > 0)
+                summarize(current, left(current), right(current));
+            touch(current);
+            long top = fixPath(current);
+            flush();
+            publish(top);
+            tx = commit();
+        } finally {
+            lock.writeLock().unlock();
         }
+        awaitDurable(tx);
+        return true;
+    }
 
-        node = new Node(r);
-        //if the new key is less than the node's key, go left
-        if(k < node.key) {
-            node.left = insert(node.left, k, sFields, iFields);
+    /**
+     * Reads the node holding k under the read lock, or a pin in copy-on-write mode, see peekNode().
+     * @param k the key value being searched for
+     * @return the node holding k, or null if k is not in the tree
+     * @throws IOException
+     */
+    private Node findNode(int k) throws IOException {
+        if (!mayHold(k))
+            return null;
+        if (copyOnWrite) {
+            long e = pin();
+            try {
+                long addr = locate(root, k);
+                return addr == 0 ? null : peekNode(addr);
+            } finally {
+                unpin(e);
+            }
         }
-        //if the new key is greater than the node's key, go right
-        else if(k > node.key) {
-            node.right = insert(node.right, k, sFields, iFields);
+        lockRead();
+        try {
+            long addr = locate(root, k);
+            return addr == 0 ? null : peekNode(addr);
+        } finally {
+            unlockRead();
         }
-        //adjust height of the node(s) and rewrite it to the file.
-        node.height = height(node);
-        node.writeNode(r);
-        return balance(r, node);
     }
 
     /**
-     * print the contents of the nodes in the tree is ascending order of the key
-     * do not print the null characters
+     * removes the node containing the key k
+     * @param k the value being searched for
      * @throws IOException
      */
-    public void print() throws IOException {
-        print(root);
+    public void remove(int k) throws IOException {
+        long start = System.nanoTime();
+        try {
+            long tx = 0;
+            lockWrite();
+            try {
+                modCount++;
+                if (!mayHold(k))
+                    return;
+                //walk down to the node holding k, remembering the path
+                depth = 0;
+                long addr = root;
+                Node current = null;
+                while (addr != 0) {
+                    Node node = readNode(addr);
+                    if (k == node.key) {
+                        current = node;
+                        break;
+                    }
+                    push(node, k < node.key);
+                    addr = k < node.key ? node.left : node.right;
+                }
+                //if k is not in the tree do nothing
+                if (current == null)
+                    return;
+                int[] removedFields = current.intFields;
+
+                reclaim();
+                Node replacement;
+                //if either child is null, the other child takes the place of the node
+                if (current.left == 0 || current.right == 0) {
+                    replacement = current.left != 0 ? left(current) : right(current);
+                    release(current.addr);
+                }
+                //else there are two children, so move the largest key on the left into this node
+                else {
+                    push(current, true);
+                    Node max = left(current);
+                    while (max.right != 0) {
+                        push(max, false);
+                        max = right(max);
+                    }
+                    current.key = max.key;
+                    current.intFields = max.intFields;
+                    current.stringFields = max.stringFields;
+                    touch(current);
+
+                    //the left child of the largest key takes its place
+                    replacement = left(max);
+                    release(max.addr);
+                }
+                long top = fixPath(replacement);
+                flush();
+                publish(top);
+                tx = commit();
+                updateIndexes(k, removedFields, false);
+                if (filter != null) {
+                    filter.removed();
+                    if (filter.isStale())
+                        buildFilter(filter.getBitsPerKey());
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            awaitDurable(tx);
+        } finally {
+            stats.record(TreeStats.REMOVE, start);
+        }
     }
 
     /**
-     * the private recursive helper method for the print() function
-     * @param addr the address of the current node
+     * Hangs a changed subtree back on the remembered path and rebalances the path bottom up.
+     * The walk stops early once a subtree keeps both its root and its height,
+     * since nothing above it can change. In copy-on-write mode every changed node moves,
+     * so the walk always reaches the root.
+     * @param child the new root of the subtree below the deepest node on the path, or null
+     * @return the address of the root of the whole tree
      * @throws IOException
      */
-    private void print(long addr) throws IOException {
-        //if null, return
-        if (addr == 0)
-            return;
+    private long fixPath(Node child) throws IOException {
+        for (int i = depth - 1; i >= 0; i--) {
+            Node parent = path[i];
+            boolean changed = wentLeft[i] ? setLeft(parent, child) : setRight(parent, child);
+            if (!changed)
+                return root;
+            child = balance(parent);
+        }
+        return child == null ? 0 : child.addr;
+    }
 
-        //else print contents from smallest(left) to greatest(right)
-        Node n = new Node(addr);
-        print(n.left);
-        System.out.println(n);
-        print(n.right);
-}
+    /**
+     * Adds a node to the path stack, growing the stack if needed.
+     * @param n the node being passed through
+     * @param left true if the walk continues to the left child of n
+     */
+    private void push(Node n, boolean left) {
+        if (depth == path.length) {
+            path = Arrays.copyOf(path, depth * 2);
+            wentLeft = Arrays.copyOf(wentLeft, depth * 2);
+        }
+        path[depth] = n;
+        wentLeft[depth] = left;
+        depth++;
+    }
 
     /**
-     * Used to get the char fields from a node that is associated with k.
-     * @param k the key value being searched for
-     * @return a LinkedList of Strings from the char field in the node with k.
+     * Marks a node as changed so flush() writes it at the end of the operation.
+     * In copy-on-write mode a node already in the file is given a new address,
+     * and the old one is retired until no reader can reach it.
+     * @param n the changed node
      * @throws IOException
      */
-    public LinkedList<String> stringFind(int k) throws IOException {
-        Node current = new Node(root);
-
-        //while the key hasn't been found...
-        while( k != current.key) {
-            //if k is less than the target, go left
-            if (k < current.key && current.left != 0)
-                current = new Node(current.left);
-
-            //if k is greater than the target, go right
-            else if (k > current.key && current.right != 0)
-                current = new Node(current.right);
-
-            //if you are at a leaf and still haven't found the target, return null
-            else if(current.right == 0 || current.left == 0)
-                return null;
-        }
-        //load values of the target node into the LinkedList
-        LinkedList<String> list = new LinkedList<>();
-        for(int i = 0; i < numStringFields; i++) {
-            String str = "";
-            for(int j = 0; j < fieldLengths[i] -1 ; j++ ) {
-                //only add character if not null
-                if(current.stringFields[i][j] == '\0') break;
-                str += current.stringFields[i][j];
+    private void touch(Node n) throws IOException {
+        if (!n.dirty) {
+            n.dirty = true;
+            dirtyNodes.add(n);
+            //only a new node has no stored height
+            if (copyOnWrite && n.storedHeight >= 0) {
+                release(n.addr);
+                n.addr = allocate(n.addr);
             }
-            list.add(str);
         }
-        return list;
     }
 
     /**
-     * Used to get the int fields from a node that is associated with k.
-     * @param k the key value being searched for
-     * @return a LinkedList of Integers from the int field in the node with k.
+     * Gives up the address of a node that is no longer in the tree.
+     * In copy-on-write mode readers may still be on an older version that uses it,
+     * so it is retired with the epoch of the change and freed later by reclaim().
+     * @param addr the address of the node
      * @throws IOException
      */
-    public LinkedList<Integer> intFind(int k) throws IOException {
-        Node current = new Node(root);
-
-        //while the target key hasn't been found...
-        while( k != current.key) {
-            //if lesser than the target, go left
-            if (k < current.key && current.left != 0)
-                current = new Node(current.left);
+    private void release(long addr) throws IOException {
+        if (copyOnWrite)
+            retired.add(new long[] {epoch + 1, addr});
+        else
+            addToFree(addr);
+    }
 
-            //if greater than the target, go right
-            else if (k > current.key && current.right != 0)
-                current = new Node(current.right);
+    /**
+     * Makes the result of a change the current tree, after flush() has written its nodes.
+     * With the write-ahead log on the root is written to the header as part of the change.
+     * @param top the address of the new root
+     * @throws IOException
+     */
+    private void publish(long top) throws IOException {
+        root = top;
+        if (topNodes != null)
+            setTopHeight(top == 0 ? -1 : peekNode(top).height);
+        if (log != null)
+            writeLong(headerOffset(), root);
+        if (copyOnWrite)
+            epoch++;
+    }
 
-            //if target hasn't been found and at a leaf, return null
-            else if(current.right == 0 || current.left == 0)
-                return null;
-        }
-        //load int values into the LinkedList and return
-        LinkedList<Integer> list = new LinkedList<>();
-        for(int i = 0; i < numIntFields; i++) {
-            list.add(current.intFields[i]);
-        }
-        return list;
+    /**
+     * Ends the log transaction holding the writes of the current change.
+     * @return the transaction to wait for once the lock is released, or 0 if the log is off
+     * @throws IOException
+     */
+    private long commit() throws IOException {
+        //the pages changed by this change go out whole, and into the same transaction
+        if (pages != null)
+            pages.flushPages();
+        return log == null ? 0 : log.commit();
     }
 
     /**
-     * removes the node containing the key k
-     * @param k the value being searched for
+     * Waits for a transaction to be durable. Called without the lock, so other changes can
+     * join the group while this one waits.
+     * @param tx the transaction, or 0 for none
      * @throws IOException
      */
-    public void remove(int k) throws IOException {
-        root = remove(k, root);
+    private void awaitDurable(long tx) throws IOException {
+        if (tx != 0)
+            log.awaitDurable(tx, !lock.hasQueuedThreads());
     }
 
     /**
-     * a private recursive helper method to remove a node
-     * @param k the value being searched for
-     * @param addr the address of the current node
-     * @return the address of a node
+     * Moves the retired nodes no pinned version can reach to the free list.
+     * A node retired by the change that published epoch e is only reachable from roots older than e.
      * @throws IOException
      */
-    private long remove(int k, long addr) throws IOException {
-        //if at a leaf, return
-        if (addr == 0)
-            return 0;
-        Node current = new Node(addr);
-        long retVal = addr;
+    private void reclaim() throws IOException {
+        long oldest;
+        synchronized (pins) {
+            oldest = pins.isEmpty() ? Long.MAX_VALUE : pins.firstKey();
+        }
+        while (!retired.isEmpty() && retired.peek()[0] <= oldest)
+            addToFree(retired.poll()[1]);
+    }
 
-        //if node found, do one of the following
-        if (current.key == k) {
-            //if both children are null, return a reference to null addr(0) and add node to free list
-            if (current.left == 0 && current.right == 0) {
-                addToFree(addr);
-                return 0;
+    /**
+     * Pins the current epoch so the nodes of its root are not freed.
+     * The root must be read after pinning, it is then at least as new as the pinned epoch.
+     * @return the pinned epoch, to be passed to unpin()
+     */
+    private long pin() {
+        synchronized (pins) {
+            boolean interrupted = false;
+            while (exclusive) {
+                try {
+                    pins.wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
             }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            long e = epoch;
+            pins.merge(e, 1, Integer::sum);
+            return e;
+        }
+    }
 
-            //if only the left child is null, return the addr of the only child and add node to free list
-            else if(current.left == 0) {
-                retVal = current.right;
-                addToFree(addr);
-                return retVal;
-            }
+    //drops one pin of epoch e
+    private void unpin(long e) {
+        synchronized (pins) {
+            pins.computeIfPresent(e, (key, n) -> n == 1 ? null : n - 1);
+            if (pins.isEmpty())
+                pins.notifyAll();
+        }
+    }
 
-            //if on the right child is null, return the addr of the only child and add node to free list
-            else if (current.right == 0) {
-                retVal = current.left;
-                addToFree(addr);
-                return retVal;
+    /**
+     * Keeps new readers of a copy-on-write tree out and waits for the pinned ones to finish.
+     * @throws IOException if interrupted while waiting
+     */
+    private void excludeReaders() throws IOException {
+        synchronized (pins) {
+            exclusive = true;
+            try {
+                while (!pins.isEmpty())
+                    pins.wait();
+            } catch (InterruptedException ex) {
+                exclusive = false;
+                pins.notifyAll();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for snapshots to close");
             }
-
-            //else there are two children, so find a replacement and add node to free list
-            else
-                current.left = replace(current.left, current);
         }
-        //go left if the key you're looking for is less than current node
-        else if (current.key > k)
-            current.left = remove(k, current.left);
-
-        //go right if the key you're looking for is greater than current node
-        else
-            current.right = remove(k, current.right);
+    }
 
-        //update height and rewrite node
-        current.height = height(current);
-        current.writeNode(retVal);
+    //lets readers pin versions again
+    private void admitReaders() {
+        synchronized (pins) {
+            exclusive = false;
+            pins.notifyAll();
+        }
+    }
 
-        //balance tree if heights are off and return
-        if(heightDifference(addr) > 1 || heightDifference(addr) < -1)
-            return balance(retVal, current);
-        return retVal;
+    /**
+     * Writes every node changed by the current operation, each exactly once.
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        for (Node n : dirtyNodes)
+            n.writeNode();
+        dirtyNodes.clear();
     }
 
     /**
@@ -391,223 +3556,465 @@ public class AVLTree {
      * @throws IOException
      */
     public void close() throws IOException {
-        f.seek(0);
-        f.writeLong(root);
-        f.writeLong(free);
-        f.close();
+        lockWrite();
+        try {
+            //open snapshots end with the tree, so every retired node can be freed
+            warmUps++;
+            synchronized (pins) {
+                pins.clear();
+            }
+            reclaim();
+            if (cache != null)
+                cache.flush();
+            writeLong(headerOffset(), root);
+            writeLong(headerOffset() + 8, free);
+            storage.close();
+            for (SecondaryIndex index : indexes)
+                if (index != null)
+                    index.close();
+            if (filter != null)
+                filter.save(filterName(fileName), true);
+        } finally {
+            lock.writeLock().unlock();
+            unregisterStats();
+        }
+    }
+
+    //takes the statistics out of JMX again
+    private void unregisterStats() {
+        if (statsName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsName);
+        } catch (JMException e) {
+            //already gone
+        }
+        statsName = null;
     }
 
     /**
-     * Used to determine the height of a specific node
+     * Used to determine the height of a node that may be null
      * @param n the specified node
      * @return the height of the node, or -1 if null.
-     * @throws IOException
      */
-    private int height(Node n) throws IOException {
-        //if at a leaf, height is 0
-        if(n.left == 0 && n.right == 0)
-            return 0;
-        Node left = null, right = null;
+    private int height(Node n) {
+        return n == null ? -1 : n.height;
+    }
 
-        //if left and/or right nodes exist, create in-memory versions
-        if(n.left != 0)
-            left = new Node(n.left);
-        if(n.right != 0)
-            right = new Node(n.right);
+    /**
+     * Used to determine the subtree size of a node that may be null, in a sized file
+     * @param n the specified node
+     * @return the size of the subtree, or 0 if null.
+     */
+    private int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
 
-        //return 1 + the greatest existing height
-        if(n.left == 0)
-            return 1 + right.height;
-        else if(n.right == 0)
-            return 1 + left.height;
-        return 1 + Math.max(left.height, right.height);
+    /**
+     * Recomputes the subtree size and aggregates of a node of a sized file from its children.
+     * @param n the node
+     * @param l the left child of n, or null
+     * @param r the right child of n, or null
+     * @return true if the size or any aggregate changed
+     */
+    private boolean summarize(Node n, Node l, Node r) {
+        int s = 1 + size(l) + size(r);
+        boolean changed = s != n.size;
+        n.size = s;
+        for (int j = 0; j < aggregateFields.length; j++) {
+            long v = n.intFields[aggregateFields[j]];
+            long sum = v, min = v, max = v;
+            if (l != null) {
+                sum += l.aggregates[3 * j];
+                min = Math.min(min, l.aggregates[3 * j + 1]);
+                max = Math.max(max, l.aggregates[3 * j + 2]);
+            }
+            if (r != null) {
+                sum += r.aggregates[3 * j];
+                min = Math.min(min, r.aggregates[3 * j + 1]);
+                max = Math.max(max, r.aggregates[3 * j + 2]);
+            }
+            if (sum != n.aggregates[3 * j] || min != n.aggregates[3 * j + 1] || max != n.aggregates[3 * j + 2]) {
+                n.aggregates[3 * j] = sum;
+                n.aggregates[3 * j + 1] = min;
+                n.aggregates[3 * j + 2] = max;
+                n.aggregatesChanged = true;
+                changed = true;
+            }
+        }
+        return changed;
     }
 
     /**
-     * Calculates the height difference of sibling nodes
-     * @param addr the address of the current node
-     * @return the height difference
+     * Gets the left child of a node, reading it only if it is not already in memory.
+     * @param n the parent node
+     * @return the left child, or null if there is none
      * @throws IOException
      */
-    private int heightDifference(long addr) throws IOException {
-        Node current = new Node(addr);
-        Node left = null, right = null;
-        int leftRet = 0, rightRet = 0;
-
-        //if left node is not null, create in-memory version and get height
-        if(current.left != 0) {
-            left = new Node(current.left);
-            if(left.height != 0)
-                leftRet = left.height;
+    private Node left(Node n) throws IOException {
+        if (n.left == 0)
+            return null;
+        if (n.leftNode == null || n.leftNode.addr != n.left) {
+            n.leftNode = readNode(n.left);
+            stats.rebalanceReads.increment();
         }
+        return n.leftNode;
+    }
 
-        //if right node is not null, create in-memory version and get height
-        if(current.right != 0) {
-            right = new Node(current.right);
-            if(right.height != 0)
-                rightRet = right.height;
+    /**
+     * Gets the right child of a node, reading it only if it is not already in memory.
+     * @param n the parent node
+     * @return the right child, or null if there is none
+     * @throws IOException
+     */
+    private Node right(Node n) throws IOException {
+        if (n.right == 0)
+            return null;
+        if (n.rightNode == null || n.rightNode.addr != n.right) {
+            n.rightNode = readNode(n.right);
+            stats.rebalanceReads.increment();
         }
+        return n.rightNode;
+    }
 
-        //if either are null, make correlating return value -1
-        if(left == null)
-            leftRet = -1;
-        if(right == null)
-            rightRet = -1;
+    /**
+     * Makes child the left child of n, marking n dirty if the reference changes.
+     * @param n the parent node
+     * @param child the new left subtree, or null
+     * @return true if n or the height of its left subtree changed
+     */
+    private boolean setLeft(Node n, Node child) throws IOException {
+        long addr = child == null ? 0 : child.addr;
+        if (addr != n.left)
+            touch(n);
+        boolean changed = addr != n.left || (child != null && (child.height != child.storedHeight || child.size != child.storedSize || child.aggregatesChanged));
+        n.left = addr;
+        n.leftNode = child;
+        return changed;
+    }
 
-        //return difference
-        return leftRet - rightRet;
+    /**
+     * Makes child the right child of n, marking n dirty if the reference changes.
+     * @param n the parent node
+     * @param child the new right subtree, or null
+     * @return true if n or the height of its right subtree changed
+     */
+    private boolean setRight(Node n, Node child) throws IOException {
+        long addr = child == null ? 0 : child.addr;
+        if (addr != n.right)
+            touch(n);
+        boolean changed = addr != n.right || (child != null && (child.height != child.storedHeight || child.size != child.storedSize || child.aggregatesChanged));
+        n.right = addr;
+        n.rightNode = child;
+        return changed;
     }
 
     /**
      * rebalances AVL tree if needed and recalculates height of node.
-     * @param addr the address of the current node
-     * @param n the current node
-     * @return the appropriate address
+     * Child heights come from the children already in memory, so only missing siblings are read.
+     * Changed nodes are only marked, flush() writes them at the end of the operation.
+     * @param n the current node, one of whose subtrees has changed
+     * @return the root of the balanced subtree
      * @throws IOException
      */
-    private long balance(long addr, Node n) throws IOException {
-        //if null, return a null reference
-        if(addr == 0)
-            return 0;
+    private Node balance(Node n) throws IOException {
+        Node l = left(n), r = right(n);
+        Node top;
 
         //if the height of the left subtree is more than one greater than the right do one of the following
-        if(heightDifference(addr) > 1) {
+        if(height(l) - height(r) > 1) {
             //if left-left case, single rotate with left child
-            if(heightDifference(n.left) > 0) {
-                addr = rotateWithLeftChild(addr);
+            if(height(left(l)) >= height(right(l))) {
+                top = rotateWithLeftChild(n);
+                stats.leftRotations.increment();
             }
             //else double rotate with left in left-right case
             else {
-                addr = doubleWithLeftChild(addr);
+                top = doubleWithLeftChild(n);
+                stats.leftRightRotations.increment();
             }
         }
         //if the height of the right subtree is more than one greater than the left do one of the following
-        else if(heightDifference(addr) < -1) {
+        else if(height(r) - height(l) > 1) {
             //if right-right case, single rotate with right child
-            if(heightDifference(n.right) < 0) {
-                addr = rotateWithRightChild(addr);
+            if(height(right(r)) >= height(left(r))) {
+                top = rotateWithRightChild(n);
+                stats.rightRotations.increment();
             }
             //else double rotate with right in right-left case
             else {
-                addr = doubleWithRightChild(addr);
+                top = doubleWithRightChild(n);
+                stats.rightLeftRotations.increment();
             }
         }
-        //else no rotations needed, so return
-        return addr;
+        //else no rotations needed, so only the height and size may change
+        else {
+            int h = 1 + Math.max(height(l), height(r));
+            boolean changed = h != n.height;
+            n.height = h;
+            if (sized && summarize(n, l, r))
+                changed = true;
+            if (changed)
+                touch(n);
+            return n;
+        }
+        return top;
     }
 
     /**
-     * Finds a suitable existing node to replace one that also exists.
-     * @param addr address of the current node
-     * @param old reference to the node being replaced
-     * @return the appropriate address
+     * Performs a single rotation with the left child in memory.
+     * @param k2 the current node
+     * @return the new root of the subtree
      * @throws IOException
      */
-    private long replace(long addr, Node old) throws IOException {
-       Node current = new Node(addr);
+    private Node rotateWithLeftChild(Node k2) throws IOException {
+        Node k1 = left(k2);
 
-        //if right is not null or at leaf, go right until at leaf
-        if (current.right != 0){
-            current.right = replace(current.right, old);
-            current.writeNode(addr);
-            //return the address of the balanced tree
-            return addr;
-        }
-        //if at a left subtree's rightmost node, copy info into old node
-        else{
-            old.key = current.key;
-            old.intFields = current.intFields;
-            old.stringFields = current.stringFields;
-
-            //update height, add node to free list, and return
-            old.height = height(current);
-            addToFree(addr);
-            return balance(current.left, new Node(current.left));
+        //perform rotation by changing references
+        setLeft(k2, right(k1));
+        setRight(k1, k2);
+
+        //recalculate heights and sizes from the children in memory
+        k2.height = 1 + Math.max(height(left(k2)), height(right(k2)));
+        k1.height = 1 + Math.max(height(left(k1)), k2.height);
+        if (sized) {
+            summarize(k2, left(k2), right(k2));
+            summarize(k1, left(k1), k2);
         }
+        return k1;
     }
 
     /**
-     * Performs a single rotation with the left child.
-     * @param addr address of the current node
-     * @return appropriate address
+     * Performs a single rotation with the right child in memory.
+     * @param k2 the current node
+     * @return the new root of the subtree
      * @throws IOException
      */
-    private long rotateWithLeftChild(long addr) throws IOException {
-        Node current = new Node(addr);
-        Node left = new Node(current.left);
-        long retVal = current.left;
+    private Node rotateWithRightChild(Node k2) throws IOException {
+        Node k1 = right(k2);
 
         //perform rotation by changing references
-        current.left = left.right;
-        left.right = addr;
+        setRight(k2, left(k1));
+        setLeft(k1, k2);
+
+        //recalculate heights and sizes from the children in memory
+        k2.height = 1 + Math.max(height(left(k2)), height(right(k2)));
+        k1.height = 1 + Math.max(height(right(k1)), k2.height);
+        if (sized) {
+            summarize(k2, left(k2), right(k2));
+            summarize(k1, k2, right(k1));
+        }
+        return k1;
+    }
 
-        //recalculate heights, rewrite to file, and return a reference
-        current.height = height(current);
-        current.writeNode(addr);
-        left.height = height(left);
-        left.writeNode(retVal);
-        return retVal;
+    /**
+     * Performs a double rotation with the left child in memory.
+     * @param k3 the current node
+     * @return the new root of the subtree
+     * @throws IOException
+     */
+    private Node doubleWithLeftChild(Node k3) throws IOException {
+        setLeft(k3, rotateWithRightChild(left(k3)));
+        return rotateWithLeftChild(k3);
     }
 
     /**
-     * Performs a single rotation with the right child.
-     * @param addr the address of the current node
-     * @return the appropriate address
+     * Performs a double rotation with the right child in memory.
+     * @param k3 the current node
+     * @return the new root of the subtree
+     * @throws IOException
+     */
+    private Node doubleWithRightChild(Node k3) throws IOException {
+        setRight(k3, rotateWithLeftChild(right(k3)));
+        return rotateWithRightChild(k3);
+    }
+
+    /**
+     * Gets the address for a new node.
+     * @param near the address of a node the new one is used with, or 0
+     * @return the address to be used
      * @throws IOException
      */
-    private long rotateWithRightChild(long addr) throws IOException {
-        Node current = new Node(addr);
-        Node right = new Node(current.right);
-        long retVal = current.right;
+    private long allocate(long near) throws IOException {
+        return pageSize != 0 ? allocateSlot(near) : removeFromFree();
+    }
 
-        //perform rotation by changing references
-        current.right = right.left;
-        right.left = addr;
+    /**
+     * Takes a free slot in a paged file: in the page of near if it has one, so small subtrees
+     * stay within a page, else in a page with plenty of room, else in a new page.
+     * @param near the address of a node the new one is used with, or 0
+     * @return the address of the slot
+     * @throws IOException
+     */
+    private long allocateSlot(long near) throws IOException {
+        if (near != 0) {
+            long addr = takeSlot(near / pageSize);
+            if (addr != 0) {
+                stats.freeSpaceHits.increment();
+                return addr;
+            }
+        }
+        int page = roomyPages.nextSetBit(1);
+        if (page > 0)
+            stats.freeSpaceHits.increment();
+        return takeSlot(page > 0 ? page : newPage());
+    }
 
-        //recalculate heights, rewrite to file, and return a reference
-        current.height = height(current);
-        current.writeNode(addr);
-        right.height = height(right);
-        right.writeNode(retVal);
-        return retVal;
+    //adds an empty page to the end of a paged file and returns its number
+    private long newPage() throws IOException {
+        long page = Math.max(1, (storage.length() + pageSize - 1) / pageSize);
+        stats.fileGrowths.increment();
+        storage.write(page * pageSize, ByteBuffer.allocate(slotMapBytes));
+        return page;
     }
 
     /**
-     * Performs a double rotation with the left child
-     * @param addr the address of the current node
-     * @return the appropriate address
+     * Makes room in the full page of the deepest node on the path, the way a B-tree splits a page.
+     * The path runs through the page from some node down to its end; the highest node of that
+     * stretch whose subtree has at most half a page of nodes in the page moves to another page,
+     * along with those nodes, so both pages keep holding whole small subtrees and the new node
+     * goes next to its parent. Only the moved nodes and the parent of the highest one change.
+     * Copy-on-write mode moves the changed nodes anyway and never splits.
      * @throws IOException
      */
-    private long doubleWithLeftChild(long addr) throws IOException {
-        //perform rotations
-        Node current = new Node(addr);
-        current.left = rotateWithRightChild(current.left);
+    private void splitPage() throws IOException {
+        //the stretch of the path in the page is path[top] to path[depth - 1]
+        stats.pageSplits.increment();
+        long page = path[depth - 1].addr / pageSize;
+        int top = depth - 1;
+        while (top > 0 && path[top - 1].addr / pageSize == page)
+            top--;
+        HashMap<Long, Node> onPath = new HashMap<>();
+        for (int i = top; i < depth; i++)
+            onPath.put(path[i].addr, path[i]);
+
+        //count the nodes in the page below each node of the stretch, bottom up
+        int j = depth - 1;
+        int size = 0;
+        for (int i = depth - 1; i >= top; i--) {
+            size += 1 + inPage(wentLeft[i] ? path[i].right : path[i].left, page, null, null);
+            if (size <= slotsPerPage / 2)
+                j = i;
+        }
+
+        //gather the part under path[j] and find it a page with room
+        ArrayList<Node> part = new ArrayList<>();
+        inPage(path[j].addr, page, onPath, part);
+        int target = roomyPages.nextSetBit(1);
+        long to = target > 0 && part.size() <= slotsPerPage - usedSlots(target) ? target : newPage();
+        HashMap<Long, Long> moved = new HashMap<>();
+        for (Node n : part)
+            moved.put(n.addr, takeSlot(to));
+
+        //write the part at its new addresses, the nodes on the path are written by flush()
+        for (Node n : part) {
+            long old = n.addr;
+            n.addr = moved.get(old);
+            n.left = moved.getOrDefault(n.left, n.left);
+            n.right = moved.getOrDefault(n.right, n.right);
+            if (onPath.get(old) == n)
+                touch(n);
+            else
+                n.writeNode();
+            addToFree(old);
+        }
+        if (j == 0)
+            root = path[0].addr;
+        else if (wentLeft[j - 1])
+            setLeft(path[j - 1], path[j]);
+        else
+            setRight(path[j - 1], path[j]);
+    }
 
-        //recalculate height and rewrite node
-        current.height = Math.max(new Node(current.left).height, new Node(current.right).height);
-        current.writeNode(addr);
+    /**
+     * Counts the nodes of a subtree that are in a page, not looking past nodes in other pages.
+     * @param addr the root of the subtree, or 0
+     * @param page the page number
+     * @param onPath the nodes on the path by address, used in place of reading them, or null
+     * @param nodes filled with the nodes counted, or null
+     * @return the number of nodes
+     * @throws IOException
+     */
+    private int inPage(long addr, long page, HashMap<Long, Node> onPath, ArrayList<Node> nodes) throws IOException {
+        int count = 0;
+        ArrayDeque<Long> stack = new ArrayDeque<>();
+        stack.push(addr);
+        while (!stack.isEmpty()) {
+            long a = stack.pop();
+            if (a == 0 || a / pageSize != page)
+                continue;
+            Node n = onPath != null && onPath.containsKey(a) ? onPath.get(a) : readNode(a);
+            count++;
+            if (nodes != null)
+                nodes.add(n);
+            stack.push(n.right);
+            stack.push(n.left);
+        }
+        return count;
+    }
 
-        //return a left rotation of the subtree
-        return rotateWithLeftChild(addr);
+    /**
+     * Marks the first free slot of a page used.
+     * @param page the page number
+     * @return the address of the slot, or 0 if the page is full
+     * @throws IOException
+     */
+    private long takeSlot(long page) throws IOException {
+        ByteBuffer map = ByteBuffer.allocate(slotMapBytes);
+        storage.read(page * pageSize, map);
+        for (int slot = 0; slot < slotsPerPage; slot++) {
+            byte b = map.get(slot / 8);
+            if ((b & 1 << (slot & 7)) == 0) {
+                map.put(slot / 8, (byte) (b | 1 << (slot & 7)));
+                storage.write(page * pageSize + slot / 8, ByteBuffer.wrap(map.array(), slot / 8, 1));
+                noteRoom(page, map);
+                return page * pageSize + slotMapBytes + (long) slot * nodeSize();
+            }
+        }
+        noteRoom(page, map);
+        return 0;
     }
 
     /**
-     * Performs a double rotation with the right child.
-     * @param addr the address of the current node
-     * @return the appropriate address
+     * Marks the slot of a node in a paged file free.
+     * @param r the address of the node
      * @throws IOException
      */
-    private long doubleWithRightChild(long addr) throws IOException {
-        //perform rotations
-        Node current = new Node(addr);
-        current.right = rotateWithLeftChild(current.right);
+    private void freeSlot(long r) throws IOException {
+        if (cache != null)
+            cache.invalidate(r);
+        long page = r / pageSize;
+        int slot = (int) ((r % pageSize - slotMapBytes) / nodeSize());
+        ByteBuffer map = ByteBuffer.allocate(slotMapBytes);
+        storage.read(page * pageSize, map);
+        map.put(slot / 8, (byte) (map.get(slot / 8) & ~(1 << (slot & 7))));
+        storage.write(page * pageSize + slot / 8, ByteBuffer.wrap(map.array(), slot / 8, 1));
+        noteRoom(page, map);
+    }
 
-        //recalculate height and rewrite node
-        current.height = Math.max(new Node(current.left).height, new Node(current.right).height);
-        current.writeNode(addr);
+    //reads the slot map of a page and notes whether the page has plenty of room
+    private void noteRoom(long page) throws IOException {
+        roomyPages.set((int) page, 2 * usedSlots(page) <= slotsPerPage);
+    }
+
+    //notes whether the page with the given slot map has at least half its slots free
+    private void noteRoom(long page, ByteBuffer map) {
+        roomyPages.set((int) page, 2 * usedSlots(map) <= slotsPerPage);
+    }
+
+    //returns the number of used slots in a page
+    private int usedSlots(long page) throws IOException {
+        ByteBuffer map = ByteBuffer.allocate(slotMapBytes);
+        storage.read(page * pageSize, map);
+        return usedSlots(map);
+    }
 
-        //return a right rotation of the subtree
-        return rotateWithRightChild(addr);
+    //returns the number of used slots in the given slot map
+    private int usedSlots(ByteBuffer map) {
+        int used = 0;
+        for (int i = 0; i < slotMapBytes; i++)
+            used += Integer.bitCount(map.get(i) & 0xFF);
+        return used;
     }
 
     /**
@@ -616,20 +4023,23 @@ public class AVLTree {
      * @throws IOException
      */
     private void addToFree(long r) throws IOException {
-        long nextFree;
-        //if the free list IS NOT empty, find the next free addr
-        if(free != 0) {
-            f.seek(free);
-            nextFree = f.readLong();
-        } else
-            nextFree = 0;
+        if (topNodes != null)
+            topNodes.remove(r);
+        if (pageSize != 0) {
+            freeSlot(r);
+            return;
+        }
+        //the current head, or 0 if the list is empty, follows the new node
+        long nextFree = free;
+
+        //the record now holds a free list link, not a node
+        if (cache != null)
+            cache.invalidate(r);
 
         //update free list in file and memory
         free = r;
-        f.seek(8);
-        f.writeLong(free);
-        f.seek(r);
-        f.writeLong(nextFree);
+        writeLong(headerOffset() + 8, free);
+        writeLong(r, nextFree);
     }
 
     /**
@@ -638,22 +4048,33 @@ public class AVLTree {
      * @throws IOException
      */
     public long removeFromFree() throws IOException {
-        long addr;
-
-        //if the free list IS NOT empty, get head and set free to next addr in list
-        if(free != 0) {
-            addr = free;
-            f.seek(free);
-            free = f.readLong();
-        }
-        //else return the length, which is the next available addr
-        else {
-            addr = f.length();
-            free = 0;
+        lockWrite();
+        try {
+            long addr;
+            if (pageSize != 0)
+                return allocateSlot(0);
+
+            //if the free list IS NOT empty, get head and set free to next addr in list
+            if(free != 0) {
+                addr = free;
+                free = readLong(free);
+                stats.freeSpaceHits.increment();
+            }
+            //else return the length, which is the next available addr
+            else {
+                addr = storage.length();
+                free = 0;
+                stats.fileGrowths.increment();
+                //a write-back cache may hold the new node for a while, and copy-on-write
+                //asks for several addresses before writing any of them, so claim its space now
+                if (copyOnWrite || cache != null && cache.writeBack)
+                    storage.setLength(addr + nodeSize());
+            }
+            //update free list in file and memory
+            writeLong(headerOffset() + 8, free);
+            return addr;
+        } finally {
+            lock.writeLock().unlock();
         }
-        //update free list in file and memory
-        f.seek(8);
-        f.writeLong(free);
-        return addr;
     }
 }
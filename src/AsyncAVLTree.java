@@ -0,0 +1,197 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the operations of a tree on a bounded pool of I/O threads and hands back
+ * CompletableFutures, so callers never block on the disk themselves.
+ * Lookups of a key already being looked up do not go to the pool: they share the result of
+ * the descent in flight, so any number of concurrent requests for a hot key cost one walk
+ * down the tree. The pool's queue has a fixed capacity, and an operation that finds it full
+ * is not queued but fails at once with a RejectedExecutionException, which callers can treat
+ * as a signal to shed load or retry later.
+ * Changes made through this class end the sharing of lookups of their key, so a lookup made
+ * after a change has completed always sees it. Changes made to the tree directly do not.
+ */
+public class AsyncAVLTree {
+    private final AVLTree tree;
+    private final ThreadPoolExecutor workers;
+    //the lookups in flight, by key, completed with the result before callers get their copy
+    private final ConcurrentHashMap<Integer, CompletableFuture<LinkedList<String>>> stringLookups = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, CompletableFuture<LinkedList<Integer>>> intLookups = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param tree the tree the operations go to, closed by close()
+     * @param threads the number of I/O threads
+     * @param queueCapacity the number of operations that may wait for a thread
+     */
+    public AsyncAVLTree(AVLTree tree, int threads, int queueCapacity) {
+        if (threads < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException("a pool needs at least one thread and one queue slot");
+        this.tree = tree;
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "tree I/O");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    //one call to the tree, run on a worker
+    private interface Operation<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Looks up the char fields of k, see AVLTree.stringFind().
+     * @param k the key value being searched for
+     * @return a future of the char fields, or of null if k is not in the tree
+     */
+    public CompletableFuture<LinkedList<String>> stringFind(int k) {
+        return lookup(stringLookups, k, () -> tree.stringFind(k));
+    }
+
+    /**
+     * Looks up the int fields of k, see AVLTree.intFind().
+     * @param k the key value being searched for
+     * @return a future of the int fields, or of null if k is not in the tree
+     */
+    public CompletableFuture<LinkedList<Integer>> intFind(int k) {
+        return lookup(intLookups, k, () -> tree.intFind(k));
+    }
+
+    /**
+     * Starts a lookup of k, or joins the one in flight. Every caller gets its own copy of the
+     * result, so callers may change the lists they get.
+     * @param inFlight the lookups of this kind in flight
+     * @param k the key value being searched for
+     * @param find the lookup
+     * @return a future of the result
+     */
+    private <E> CompletableFuture<LinkedList<E>> lookup(ConcurrentHashMap<Integer, CompletableFuture<LinkedList<E>>> inFlight,
+                                                        int k, Operation<LinkedList<E>> find) {
+        CompletableFuture<LinkedList<E>> f = new CompletableFuture<>();
+        CompletableFuture<LinkedList<E>> running = inFlight.putIfAbsent(k, f);
+        if (running != null) {
+            coalesced.increment();
+            return running.thenApply(AsyncAVLTree::copy);
+        }
+        //the entry goes before the result is set, so no caller joins a lookup that is over
+        submit(f, find, () -> inFlight.remove(k, f));
+        return f.thenApply(AsyncAVLTree::copy);
+    }
+
+    private static <E> LinkedList<E> copy(LinkedList<E> list) {
+        return list == null ? null : new LinkedList<>(list);
+    }
+
+    /**
+     * Inserts k and the fields, see AVLTree.insert().
+     * @param k the key value being inserted
+     * @param sFields the char fields being inserted
+     * @param iFields the int fields being inserted
+     * @return a future completed once the record is in the tree
+     */
+    public CompletableFuture<Void> insert(int k, char[][] sFields, int[] iFields) {
+        return change(k, () -> {
+            tree.insert(k, sFields, iFields);
+            return null;
+        });
+    }
+
+    /**
+     * Removes k, see AVLTree.remove().
+     * @param k the key value being removed
+     * @return a future completed once k is gone
+     */
+    public CompletableFuture<Void> remove(int k) {
+        return change(k, () -> {
+            tree.remove(k);
+            return null;
+        });
+    }
+
+    //runs a change of k, after which lookups of k start a descent of their own
+    private CompletableFuture<Void> change(int k, Operation<Void> write) {
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        submit(f, write, () -> {
+            stringLookups.remove(k);
+            intLookups.remove(k);
+        });
+        return f;
+    }
+
+    /**
+     * Queues op on the workers to complete f, or fails f if the queue is full.
+     * @param f the future of the operation
+     * @param op the operation
+     * @param done run after op and before f is completed, or when op is rejected
+     */
+    private <T> void submit(CompletableFuture<T> f, Operation<T> op, Runnable done) {
+        try {
+            workers.execute(() -> {
+                T result = null;
+                Throwable failure = null;
+                try {
+                    result = op.run();
+                } catch (Throwable e) {
+                    failure = e;
+                }
+                done.run();
+                if (failure == null)
+                    f.complete(result);
+                else
+                    f.completeExceptionally(failure);
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            done.run();
+            f.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @return the number of lookups that shared a descent already in flight
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the number of operations that failed because the queue was full
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of operations waiting for a thread
+     */
+    public int getQueued() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * Lets the operations already queued finish, then closes the tree.
+     * Operations started after this fail with a RejectedExecutionException.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        workers.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (workers.awaitTermination(1, TimeUnit.SECONDS))
+                    break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        tree.close();
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A Bloom filter over the keys of a tree, so a lookup of a key that was never inserted can
+ * answer without reading a node. It only grows: removed keys stay in it until the tree builds
+ * a new filter, which it does once too many keys have been removed or added since the last build.
+ * Keys are added under the tree's write lock and the bits are read without any lock, so they are
+ * kept in an AtomicLongArray, whose reads cost no more than plain ones on common hardware.
+ * The filter is kept in a file next to the tree, written when the tree is closed. The file
+ * records whether it was closed cleanly, so one left behind by a crash is built again.
+ */
+class BloomFilter {
+    private static final int MAGIC = 0xB1005EED; //the first 4 bytes of the filter file
+    private static final int HEADER_SIZE = 40;
+    private static final int MIN_CAPACITY = 1024;
+    private final AtomicLongArray bits;
+    private final long mask; //the number of bits - 1, a power of two - 1
+    private final int hashes; //the number of bits set for each key
+    private final int bitsPerKey;
+    private final long capacity; //the number of keys the filter was sized for
+    private long keys; //the keys added since the filter was built
+    private long removes; //the keys removed from the tree since the filter was built
+
+    /**
+     * Makes an empty filter.
+     * @param capacity the number of keys it is sized for, at least 1024 is used
+     * @param bitsPerKey the bits per key, which sets the false positive rate
+     */
+    BloomFilter(long capacity, int bitsPerKey) {
+        this(capacity, bitsPerKey, new AtomicLongArray(words(Math.max(capacity, MIN_CAPACITY), bitsPerKey)));
+    }
+
+    private BloomFilter(long capacity, int bitsPerKey, AtomicLongArray bits) {
+        this.capacity = Math.max(capacity, MIN_CAPACITY);
+        this.bitsPerKey = bitsPerKey;
+        this.bits = bits;
+        mask = 64L * bits.length() - 1;
+        //k = ln 2 * bits per key gives the fewest false positives
+        hashes = Math.max(1, Math.min(16, (int) Math.round(bitsPerKey * Math.log(2))));
+    }
+
+    //the words of a filter for capacity keys, a power of two number of bits
+    private static int words(long capacity, int bitsPerKey) {
+        long bits = Long.highestOneBit(capacity * bitsPerKey - 1) << 1;
+        if (bits / 64 > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("a filter for " + capacity + " keys is too large");
+        return (int) Math.max(1, bits / 64);
+    }
+
+    /**
+     * @return the bits per key the filter was made with
+     */
+    int getBitsPerKey() {
+        return bitsPerKey;
+    }
+
+    //the two hashes of k, from one 64 bit mix, that the probes of k are made from
+    private static long mix(int k) {
+        long h = k * 0x9E3779B97F4A7C15L;
+        h = (h ^ h >>> 32) * 0xD6E8FEB86659FD93L;
+        return h ^ h >>> 32;
+    }
+
+    /**
+     * Adds k, called under the tree's write lock.
+     * @param k a key
+     */
+    void add(int k) {
+        long h = mix(k);
+        long step = h >>> 32 | 1;
+        for (int i = 0; i < hashes; i++, h += step) {
+            long bit = h & mask;
+            int word = (int) (bit >>> 6);
+            long old = bits.get(word);
+            if ((old & 1L << bit) == 0)
+                bits.set(word, old | 1L << bit);
+        }
+        keys++;
+    }
+
+    /**
+     * @param k a key
+     * @return false if k was never added, true if it may have been
+     */
+    boolean mightContain(int k) {
+        long h = mix(k);
+        long step = h >>> 32 | 1;
+        for (int i = 0; i < hashes; i++, h += step) {
+            long bit = h & mask;
+            if ((bits.get((int) (bit >>> 6)) & 1L << bit) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Notes that a key was removed from the tree, called under the tree's write lock.
+     */
+    void removed() {
+        removes++;
+    }
+
+    /**
+     * @return true once more keys were added than the filter was sized for, or over half of the
+     * keys added were removed again, either of which makes a new filter worth building
+     */
+    boolean isStale() {
+        return keys > capacity || 2 * removes > keys;
+    }
+
+    /**
+     * Reads the filter in the file name.
+     * @param name the file name
+     * @return the filter, or null if the file is missing or was not closed cleanly
+     * @throws IOException
+     */
+    static BloomFilter load(String name) throws IOException {
+        File file = new File(name);
+        if (!file.exists())
+            return null;
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (in.size() < HEADER_SIZE)
+                return null;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(in, header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != 1)
+                return null;
+            int words = header.getInt(36);
+            if (in.size() != HEADER_SIZE + 8L * words)
+                return null;
+            ByteBuffer body = ByteBuffer.allocate(8 * words);
+            readFully(in, body, HEADER_SIZE);
+            long[] bits = new long[words];
+            body.asLongBuffer().get(bits);
+            BloomFilter filter = new BloomFilter(header.getLong(12), header.getInt(8), new AtomicLongArray(bits));
+            filter.keys = header.getLong(20);
+            filter.removes = header.getLong(28);
+            return filter;
+        }
+    }
+
+    //fills buf from the file starting at pos
+    private static void readFully(FileChannel in, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining())
+            if (in.read(buf, pos + buf.position()) < 0)
+                throw new EOFException("filter file ended at " + (pos + buf.position()));
+        buf.flip();
+    }
+
+    /**
+     * Writes the filter to the file name, marked as closed cleanly or not.
+     * @param name the file name
+     * @param clean true if the tree is being closed
+     * @throws IOException
+     */
+    void save(String name, boolean clean) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 8 * bits.length());
+        buf.putInt(MAGIC).putInt(clean ? 1 : 0).putInt(bitsPerKey).putLong(capacity).putLong(keys)
+                .putLong(removes).putInt(bits.length());
+        for (int i = 0; i < bits.length(); i++)
+            buf.putLong(bits.get(i));
+        buf.flip();
+        try (FileChannel out = FileChannel.open(new File(name).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining())
+                out.write(buf, buf.position());
+            out.force(false);
+        }
+    }
+
+    /**
+     * Marks the filter in the file name as in use, so it is built again if the tree is not closed.
+     * @param name the file name
+     * @throws IOException
+     */
+    static void markOpen(String name) throws IOException {
+        try (FileChannel out = FileChannel.open(new File(name).toPath(), StandardOpenOption.WRITE)) {
+            out.write(ByteBuffer.allocate(4), 4);
+            out.force(false);
+        }
+    }
+
+    /**
+     * Deletes the filter file name.
+     * @param name the file name
+     */
+    static void delete(String name) {
+        new File(name).delete();
+    }
+}
@@ -0,0 +1,50 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Storage that reads and writes the RandomAccessFile through its channel with positional I/O.
+ */
+class FileStorage implements Storage {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    /**
+     * @param file the open tree file
+     */
+    FileStorage(RandomAccessFile file) {
+        this.file = file;
+        channel = file.getChannel();
+    }
+
+    public void read(long pos, ByteBuffer dst) throws IOException {
+        //a positional read may return fewer bytes than asked for, so keep going until full
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, pos);
+            if (n < 0)
+                throw new EOFException("read past the end of the file at " + pos);
+            pos += n;
+        }
+    }
+
+    public void write(long pos, ByteBuffer src) throws IOException {
+        while (src.hasRemaining())
+            pos += channel.write(src, pos);
+    }
+
+    public long length() throws IOException {
+        return channel.size();
+    }
+
+    public void setLength(long length) throws IOException {
+        file.setLength(length);
+    }
+
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Storage that maps the tree file into memory so node reads and writes are plain buffer copies.
+ * The file is mapped in fixed size chunks; when a write goes past the mapped area the file is
+ * grown by whole chunks and the new chunks are mapped. The real length of the data is tracked
+ * separately and the file is trimmed back to it on close, so the file stays readable by FileStorage.
+ */
+class MappedStorage implements Storage {
+    static final int CHUNK_SIZE = 1 << 20; //bytes mapped at a time
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    //copy-on-write readers run while the file grows, so both are published with volatile writes
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private volatile long length; //the number of bytes in use
+
+    /**
+     * @param file the open tree file
+     * @throws IOException
+     */
+    MappedStorage(RandomAccessFile file) throws IOException {
+        this.file = file;
+        channel = file.getChannel();
+        length = channel.size();
+        map(length);
+    }
+
+    //maps enough chunks to cover the first size bytes, growing the file if needed
+    private void map(long size) throws IOException {
+        int needed = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        if (needed <= chunks.length)
+            return;
+        MappedByteBuffer[] grown = new MappedByteBuffer[needed];
+        System.arraycopy(chunks, 0, grown, 0, chunks.length);
+        for (int i = chunks.length; i < needed; i++)
+            grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * CHUNK_SIZE, CHUNK_SIZE);
+        chunks = grown;
+    }
+
+    public void read(long pos, ByteBuffer dst) throws IOException {
+        if (pos + dst.remaining() > length)
+            throw new EOFException("read past the end of the file at " + pos);
+        //copy chunk by chunk in case the bytes span a chunk boundary
+        while (dst.hasRemaining()) {
+            int offset = (int) (pos % CHUNK_SIZE);
+            int n = Math.min(dst.remaining(), CHUNK_SIZE - offset);
+            dst.put(dst.position(), chunks[(int) (pos / CHUNK_SIZE)], offset, n);
+            dst.position(dst.position() + n);
+            pos += n;
+        }
+    }
+
+    public void write(long pos, ByteBuffer src) throws IOException {
+        long end = pos + src.remaining();
+        map(end);
+        while (src.hasRemaining()) {
+            int offset = (int) (pos % CHUNK_SIZE);
+            int n = Math.min(src.remaining(), CHUNK_SIZE - offset);
+            chunks[(int) (pos / CHUNK_SIZE)].put(offset, src, src.position(), n);
+            src.position(src.position() + n);
+            pos += n;
+        }
+        length = Math.max(length, end);
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public void setLength(long length) throws IOException {
+        map(length);
+        this.length = length;
+    }
+
+    public void force() {
+        for (MappedByteBuffer chunk : chunks)
+            chunk.force();
+    }
+
+    public void close() throws IOException {
+        force();
+        chunks = new MappedByteBuffer[0];
+        file.setLength(length);
+        file.close();
+    }
+}
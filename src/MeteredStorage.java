@@ -0,0 +1,60 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/*
+ * Storage that counts the calls and bytes going to another storage, for TreeStats.
+ * A seek is an access that does not start where the one before it ended.
+ */
+class MeteredStorage implements Storage {
+    private final Storage inner;
+    private final TreeStats stats;
+    private long lastEnd = -1; //where the last access ended, updated without locking since it is only a hint
+
+    /**
+     * @param inner the storage being counted
+     * @param stats where the counts go
+     */
+    MeteredStorage(Storage inner, TreeStats stats) {
+        this.inner = inner;
+        this.stats = stats;
+    }
+
+    //counts an access of n bytes at pos
+    private void access(long pos, int n) {
+        if (pos != lastEnd)
+            stats.seeks.increment();
+        lastEnd = pos + n;
+    }
+
+    public void read(long pos, ByteBuffer dst) throws IOException {
+        int n = dst.remaining();
+        inner.read(pos, dst);
+        stats.storageReads.increment();
+        stats.bytesRead.add(n);
+        access(pos, n);
+    }
+
+    public void write(long pos, ByteBuffer src) throws IOException {
+        int n = src.remaining();
+        inner.write(pos, src);
+        stats.storageWrites.increment();
+        stats.bytesWritten.add(n);
+        access(pos, n);
+    }
+
+    public long length() throws IOException {
+        return inner.length();
+    }
+
+    public void setLength(long length) throws IOException {
+        inner.setLength(length);
+    }
+
+    public void force() throws IOException {
+        inner.force();
+    }
+
+    public void close() throws IOException {
+        inner.close();
+    }
+}
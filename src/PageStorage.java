@@ -0,0 +1,295 @@
+import java.io.*;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A buffer pool of whole pages on top of another storage, used by trees in paged mode.
+ * Reads load the whole page holding the bytes and keep it, so the other nodes of a page are read
+ * for free. Writes only change the pooled page; flushPages() writes each changed page once, as a
+ * whole page, and is called at the end of every change. A changed page that has to be evicted
+ * before then is written when it leaves. Pages are evicted with CLOCK.
+ * The page table, the clock hand and every change of a frame are guarded by the pool's monitor.
+ * Reading a page that is already pooled takes no lock: each frame has a stamp that is odd while
+ * the frame is being changed and moves on with every change, so a reader copies the bytes and
+ * keeps them only if the stamp was even and the same before and after. Any other read, and a
+ * read that raced with a change, goes through the monitor.
+ */
+class PageStorage implements Storage {
+    private final Storage inner;
+    private final int pageSize;
+    private final long[] table; //page number + 1 of each hash table entry, 0 marks an empty entry
+    private final int[] frameOf; //the frame holding the page of each table entry
+    private final int mask; //table.length - 1
+    private final byte[][] frames; //the pooled pages, allocated the first time a frame is used
+    private final long[] framePage; //the page number held in each frame, -1 if the frame is empty
+    private final boolean[] referenced; //set on every use, cleared as the clock hand passes
+    private final boolean[] dirty; //frames changed since they were last written
+    private final AtomicLongArray stamps; //bumped before and after every change of a frame, odd in between
+    private int numUsed; //frames in use, frames past it have never been used
+    private int hand; //the next frame the clock looks at
+    private volatile long length; //the number of bytes in use, including changed pages not yet written
+    private long pageReads; //pages read from the inner storage
+
+    /**
+     * @param inner the storage the pages are read from and written to
+     * @param pageSize the bytes in a page, a power of two
+     * @param capacity the number of pages the pool holds
+     * @throws IOException
+     */
+    PageStorage(Storage inner, int pageSize, int capacity) throws IOException {
+        this.inner = inner;
+        this.pageSize = pageSize;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) * 2;
+        table = new long[size];
+        frameOf = new int[size];
+        mask = size - 1;
+        frames = new byte[capacity][];
+        framePage = new long[capacity];
+        Arrays.fill(framePage, -1);
+        referenced = new boolean[capacity];
+        dirty = new boolean[capacity];
+        stamps = new AtomicLongArray(capacity);
+        length = inner.length();
+    }
+
+    //marks frame f as being changed, so readers without the monitor do not trust what they copy
+    private void beginChange(int f) {
+        stamps.incrementAndGet(f);
+        //the changes that follow must not be seen before the odd stamp
+        VarHandle.storeStoreFence();
+    }
+
+    //marks the change of frame f as done
+    private void endChange(int f) {
+        stamps.incrementAndGet(f);
+    }
+
+    //the home position of page number no in the table
+    private int home(long no) {
+        return Long.hashCode((no + 1) * 0x9E3779B97F4A7C15L) & mask;
+    }
+
+    //returns the table position of page number no, or -1 if it is not pooled
+    private int find(long no) {
+        for (int i = home(no); table[i] != 0; i = (i + 1) & mask)
+            if (table[i] == no + 1)
+                return i;
+        return -1;
+    }
+
+    //removes the table entry at position i, shifting back entries that probed past it
+    private void delete(int i) {
+        table[i] = 0;
+        for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int h = home(table[j] - 1);
+            //the entry at j may move to i unless its home lies cyclically in (i, j]
+            boolean stays = i <= j ? (i < h && h <= j) : (i < h || h <= j);
+            if (!stays) {
+                table[i] = table[j];
+                frameOf[i] = frameOf[j];
+                table[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    //returns the frame holding page number no, reading the page in first if needed
+    private int frame(long no) throws IOException {
+        int i = find(no);
+        if (i >= 0) {
+            referenced[frameOf[i]] = true;
+            return frameOf[i];
+        }
+
+        //take a never used frame, or evict the first unreferenced page the clock hand finds
+        int f;
+        if (numUsed < frames.length) {
+            f = numUsed++;
+            frames[f] = new byte[pageSize];
+        } else {
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % frames.length;
+            }
+            f = hand;
+            hand = (hand + 1) % frames.length;
+            if (dirty[f])
+                writePage(f);
+            if (framePage[f] >= 0)
+                delete(find(framePage[f]));
+        }
+
+        //the part of the page past the end of the inner storage reads as zeros
+        long start = no * pageSize;
+        int n = (int) Math.max(0, Math.min(pageSize, inner.length() - start));
+        beginChange(f);
+        try {
+            framePage[f] = -1;
+            if (n > 0)
+                inner.read(start, ByteBuffer.wrap(frames[f], 0, n));
+            Arrays.fill(frames[f], n, pageSize, (byte) 0);
+            framePage[f] = no;
+        } finally {
+            endChange(f);
+        }
+        pageReads++;
+
+        referenced[f] = true;
+        dirty[f] = false;
+        int j = home(no);
+        while (table[j] != 0)
+            j = (j + 1) & mask;
+        table[j] = no + 1;
+        frameOf[j] = f;
+        return f;
+    }
+
+    //writes the used part of the page in frame f
+    private void writePage(int f) throws IOException {
+        long start = framePage[f] * pageSize;
+        int n = (int) Math.min(pageSize, length - start);
+        if (n > 0)
+            inner.write(start, ByteBuffer.wrap(frames[f], 0, n));
+        dirty[f] = false;
+    }
+
+    public void read(long pos, ByteBuffer dst) throws IOException {
+        if (pos + dst.remaining() > length)
+            throw new EOFException("read past the end of the file at " + pos);
+        while (dst.hasRemaining()) {
+            int offset = (int) (pos % pageSize);
+            int n = Math.min(dst.remaining(), pageSize - offset);
+            if (!readPooled(pos / pageSize, offset, n, dst))
+                readLocked(pos / pageSize, offset, n, dst);
+            pos += n;
+        }
+    }
+
+    /**
+     * Copies n bytes of page number no into dst without the monitor, if the page is pooled and
+     * its frame does not change during the copy.
+     * @return true if the bytes were copied, false if dst was left as it was
+     */
+    private boolean readPooled(long no, int offset, int n, ByteBuffer dst) {
+        //the table may change under the probe, so what it finds is only trusted once checked
+        int f = -1;
+        int i = home(no);
+        for (int probes = 0; probes < table.length && table[i] != 0; probes++, i = (i + 1) & mask) {
+            if (table[i] == no + 1) {
+                f = frameOf[i];
+                break;
+            }
+        }
+        if (f < 0)
+            return false;
+        long stamp = stamps.get(f);
+        byte[] page = frames[f];
+        if ((stamp & 1) != 0 || page == null || framePage[f] != no)
+            return false;
+        int at = dst.position();
+        dst.put(page, offset, n);
+        //the copy must be done before the stamp is read again
+        VarHandle.loadLoadFence();
+        if (stamps.get(f) != stamp) {
+            dst.position(at);
+            return false;
+        }
+        referenced[f] = true;
+        return true;
+    }
+
+    //copies n bytes of page number no into dst under the monitor, reading the page in if needed
+    private synchronized void readLocked(long no, int offset, int n, ByteBuffer dst) throws IOException {
+        dst.put(frames[frame(no)], offset, n);
+    }
+
+    public synchronized void write(long pos, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            int offset = (int) (pos % pageSize);
+            int n = Math.min(src.remaining(), pageSize - offset);
+            int f = frame(pos / pageSize);
+            beginChange(f);
+            try {
+                src.get(frames[f], offset, n);
+            } finally {
+                endChange(f);
+            }
+            dirty[f] = true;
+            pos += n;
+            length = Math.max(length, pos);
+        }
+    }
+
+    /**
+     * Writes every changed page to the inner storage, each as one write.
+     * @throws IOException
+     */
+    synchronized void flushPages() throws IOException {
+        for (int f = 0; f < numUsed; f++)
+            if (dirty[f])
+                writePage(f);
+    }
+
+    /**
+     * Writes the changed pages and forgets every pooled page, then takes the length of the inner
+     * storage. Used after bytes were written to the inner storage directly.
+     * @throws IOException
+     */
+    synchronized void reload() throws IOException {
+        flushPages();
+        for (int f = 0; f < numUsed; f++) {
+            if (framePage[f] >= 0)
+                delete(find(framePage[f]));
+            beginChange(f);
+            framePage[f] = -1;
+            endChange(f);
+            referenced[f] = false;
+        }
+        length = inner.length();
+    }
+
+    /**
+     * @return the number of pages read from the inner storage so far
+     */
+    synchronized long getPageReads() {
+        return pageReads;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public synchronized void setLength(long newLength) throws IOException {
+        flushPages();
+        //forget the pages past the new end, they read as zeros if the file grows again
+        for (int f = 0; f < numUsed; f++) {
+            long start = framePage[f] * pageSize;
+            if (framePage[f] >= 0 && start >= newLength) {
+                delete(find(framePage[f]));
+                beginChange(f);
+                framePage[f] = -1;
+                endChange(f);
+                referenced[f] = false;
+            }
+            else if (framePage[f] >= 0 && start + pageSize > newLength) {
+                beginChange(f);
+                Arrays.fill(frames[f], (int) (newLength - start), pageSize, (byte) 0);
+                endChange(f);
+            }
+        }
+        inner.setLength(newLength);
+        length = newLength;
+    }
+
+    public synchronized void force() throws IOException {
+        flushPages();
+        inner.force();
+    }
+
+    public synchronized void close() throws IOException {
+        flushPages();
+        inner.close();
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+ * An index on one int field of a tree, mapping each value of the field to the keys of the records
+ * holding it. It is kept in two trees of its own: the values tree maps a value to the number of
+ * records holding it and the first of their keys, and the links tree maps each indexed key to the
+ * keys before and after it among the records with the same value, a key standing for "none" in
+ * its own entry. Adding or removing a key changes a few entries, each found in O(log n).
+ * The index trees have files of their own and are not logged with the tree they index, so a state
+ * file records whether they were closed cleanly, and an index that was not is built again.
+ */
+class SecondaryIndex {
+    private final AVLTree values; //value -> {count, first key}
+    private final AVLTree links; //key -> {previous key, next key}, the key itself where there is none
+    private final String name;
+    private final boolean fresh; //created empty rather than opened
+    private boolean stale; //missed a change to the tree, so it is no longer used
+    private boolean closed;
+
+    /**
+     * Opens the index stored in files named after name. If they do not exist, or were not closed
+     * cleanly, the index is created empty and isFresh() tells the caller to fill it.
+     * Until close() the state file marks the index as open.
+     * @param name the file name of the values tree, the links tree adds ".links" and the state file ".state"
+     * @param options the options both trees are opened with
+     * @throws IOException
+     */
+    SecondaryIndex(String name, AVLTree.Options options) throws IOException {
+        this.name = name;
+        fresh = !closedCleanly(name);
+        if (!fresh) {
+            values = new AVLTree(name, options);
+            links = new AVLTree(name + ".links", options);
+        } else {
+            //trees left by a crash may be half written, so they are not even opened
+            delete(name);
+            values = new AVLTree(name, new int[0], 2, options);
+            links = new AVLTree(name + ".links", new int[0], 2, options);
+        }
+        writeState(false);
+    }
+
+    //true if both trees of the index named name exist and the state file says they were closed
+    private static boolean closedCleanly(String name) throws IOException {
+        File file = new File(name + ".state");
+        if (!file.exists() || !new File(name).exists() || !new File(name + ".links").exists())
+            return false;
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer state = ByteBuffer.allocate(4);
+            return in.read(state, 0) == 4 && state.getInt(0) == 1;
+        }
+    }
+
+    //records whether the trees are closed, on disk before either tree changes again
+    private void writeState(boolean clean) throws IOException {
+        ByteBuffer state = ByteBuffer.allocate(4).putInt(0, clean ? 1 : 0);
+        try (FileChannel out = FileChannel.open(new File(name + ".state").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            while (state.hasRemaining())
+                out.write(state, state.position());
+            out.force(false);
+        }
+    }
+
+    /**
+     * Deletes the files of the index named name.
+     * @param name the file name of the values tree
+     */
+    static void delete(String name) {
+        new File(name).delete();
+        new File(name + ".links").delete();
+        new File(name + ".state").delete();
+    }
+
+    /**
+     * @return true if the index was created empty when it was opened and still has to be filled
+     */
+    boolean isFresh() {
+        return fresh;
+    }
+
+    /**
+     * Notes that a change to the tree may not have reached the index. A stale index is not
+     * marked clean when it is closed, so it is built again when it is next opened.
+     */
+    void markStale() {
+        stale = true;
+    }
+
+    /**
+     * @return true if the index may have missed a change to the tree
+     */
+    boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * Records that the record with key k holds value, putting k first among the keys of the value.
+     * @param value the value of the indexed field
+     * @param k the key of the record
+     * @throws IOException
+     */
+    void add(int value, int k) throws IOException {
+        LinkedList<Integer> entry = values.intFind(value);
+        if (entry == null) {
+            links.insert(k, new char[0][], new int[] {k, k});
+            values.insert(value, new char[0][], new int[] {1, k});
+            return;
+        }
+        int first = entry.get(1);
+        links.insert(k, new char[0][], new int[] {k, first});
+        setPrevious(first, k);
+        values.setIntFields(value, new int[] {entry.get(0) + 1, k});
+    }
+
+    /**
+     * Takes the record with key k out of the keys of value.
+     * @param value the value the indexed field of the record held
+     * @param k the key of the record
+     * @throws IOException
+     */
+    void remove(int value, int k) throws IOException {
+        LinkedList<Integer> link = links.intFind(k);
+        LinkedList<Integer> entry = values.intFind(value);
+        if (link == null || entry == null)
+            return;
+        int previous = link.get(0);
+        int next = link.get(1);
+        links.remove(k);
+
+        //join the neighbours of k, or move the start of the value on if k was first
+        int first = entry.get(1);
+        if (previous != k)
+            setNext(previous, next == k ? previous : next);
+        else
+            first = next;
+        if (next != k)
+            setPrevious(next, previous == k ? next : previous);
+
+        int count = entry.get(0) - 1;
+        if (count == 0)
+            values.remove(value);
+        else
+            values.setIntFields(value, new int[] {count, first});
+    }
+
+    //makes previous the key before k
+    private void setPrevious(int k, int previous) throws IOException {
+        LinkedList<Integer> link = links.intFind(k);
+        links.setIntFields(k, new int[] {previous, link.get(1)});
+    }
+
+    //makes next the key after k
+    private void setNext(int k, int next) throws IOException {
+        LinkedList<Integer> link = links.intFind(k);
+        links.setIntFields(k, new int[] {link.get(0), next});
+    }
+
+    /**
+     * Collects the keys of the records whose value is from lo to hi, in ascending value order.
+     * Keys with the same value come newest first.
+     * @param lo the smallest value wanted
+     * @param hi the largest value wanted
+     * @return the keys
+     * @throws IOException
+     */
+    LinkedList<Integer> keys(int lo, int hi) throws IOException {
+        LinkedList<Integer> keys = new LinkedList<>();
+        AVLTree.RecordView view = links.newRecordView();
+        for (AVLTree.Cursor c = values.scan(lo, hi); c.hasNext(); ) {
+            int k = c.next().getIntFields()[1];
+            keys.add(k);
+            //follow the next keys until a key points at itself
+            while (links.find(k, view) && view.getIntField(1) != k) {
+                k = view.getIntField(1);
+                keys.add(k);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Writes out and closes both trees of the index, and marks it closed cleanly unless it is
+     * stale. Closing it again does nothing.
+     * @throws IOException
+     */
+    void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            values.close();
+        } finally {
+            links.close();
+        }
+        if (!stale)
+            writeState(true);
+    }
+}
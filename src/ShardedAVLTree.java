@@ -0,0 +1,394 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Spreads the keys over several independent AVLTree files, so changes to different shards
+ * never wait for each other's lock or I/O. Keys are placed by range, shard i holding the keys
+ * from split point i - 1 up to but not including split point i, or by a hash of the key.
+ * Single operations go straight to their shard on the calling thread. The batch operations
+ * group their keys by shard and run each group on a worker pool, one shard per task, so a
+ * batch uses as many cores as it touches shards.
+ * The shards are kept in files named after the tree with ".shard" and the shard number added,
+ * and the tree file itself records how keys are placed.
+ */
+public class ShardedAVLTree {
+    private static final int MAGIC = 0x5AA7DEE5; //the first 4 bytes of the tree file
+    private final AVLTree[] shards;
+    private final int[] splits; //the first key of each shard after the first, null if keys are hashed
+    private final ExecutorService workers;
+
+    /**
+     * Creates a new empty tree whose shards hold ranges of keys.
+     * @param fname the name of the tree file
+     * @param stringFieldsLengths the lengths of the char fields
+     * @param numIntFields the number of int fields
+     * @param splitPoints the first key of every shard but the first, strictly ascending
+     * @param options the options each shard is created with
+     * @throws IOException
+     */
+    public ShardedAVLTree(String fname, int[] stringFieldsLengths, int numIntFields, int[] splitPoints, AVLTree.Options options) throws IOException {
+        for (int i = 1; i < splitPoints.length; i++)
+            if (splitPoints[i] <= splitPoints[i - 1])
+                throw new IllegalArgumentException("split points must be strictly ascending");
+        splits = splitPoints.clone();
+        shards = create(fname, stringFieldsLengths, numIntFields, splits.length + 1, options);
+        workers = startWorkers();
+    }
+
+    /**
+     * Creates a new empty tree whose keys are spread over the shards by a hash.
+     * @param fname the name of the tree file
+     * @param stringFieldsLengths the lengths of the char fields
+     * @param numIntFields the number of int fields
+     * @param numShards the number of shards
+     * @param options the options each shard is created with
+     * @throws IOException
+     */
+    public ShardedAVLTree(String fname, int[] stringFieldsLengths, int numIntFields, int numShards, AVLTree.Options options) throws IOException {
+        if (numShards < 1)
+            throw new IllegalArgumentException("a tree needs at least one shard");
+        splits = null;
+        shards = create(fname, stringFieldsLengths, numIntFields, numShards, options);
+        workers = startWorkers();
+    }
+
+    /**
+     * Opens an existing sharded tree.
+     * @param fname the name of the tree file
+     * @param options the options each shard is opened with
+     * @throws IOException
+     */
+    public ShardedAVLTree(String fname, AVLTree.Options options) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fname)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(fname + " is not a sharded tree");
+            int numShards = in.readInt();
+            boolean hashed = in.readBoolean();
+            splits = hashed ? null : new int[numShards - 1];
+            if (!hashed)
+                for (int i = 0; i < splits.length; i++)
+                    splits[i] = in.readInt();
+            shards = new AVLTree[numShards];
+        }
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = new AVLTree(shardName(fname, i), options);
+        workers = startWorkers();
+    }
+
+    //writes the tree file and creates the shards
+    private AVLTree[] create(String fname, int[] stringFieldsLengths, int numIntFields, int numShards, AVLTree.Options options) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(numShards);
+            out.writeBoolean(splits == null);
+            if (splits != null)
+                for (int split : splits)
+                    out.writeInt(split);
+        }
+        AVLTree[] trees = new AVLTree[numShards];
+        for (int i = 0; i < numShards; i++)
+            trees[i] = new AVLTree(shardName(fname, i), stringFieldsLengths, numIntFields, options);
+        return trees;
+    }
+
+    //the file name of shard i of the tree in fname
+    private static String shardName(String fname, int i) {
+        return fname + ".shard" + i;
+    }
+
+    //a pool with a thread for each shard, up to the number of cores
+    private ExecutorService startWorkers() {
+        int threads = Math.min(shards.length, Runtime.getRuntime().availableProcessors());
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "shard worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param k a key value
+     * @return the number of the shard that holds k
+     */
+    public int shardOf(int k) {
+        if (splits == null) {
+            int h = k * 0x9E3779B9;
+            return Math.floorMod(h ^ h >>> 16, shards.length);
+        }
+        //a key equal to a split point starts the shard above it
+        int i = Arrays.binarySearch(splits, k);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Inserts k and the fields into its shard, see AVLTree.insert().
+     * @param k the key value being inserted
+     * @param sFields the char fields being inserted
+     * @param iFields the int fields being inserted
+     * @throws IOException
+     */
+    public void insert(int k, char[][] sFields, int[] iFields) throws IOException {
+        shards[shardOf(k)].insert(k, sFields, iFields);
+    }
+
+    /**
+     * Removes k from its shard, see AVLTree.remove().
+     * @param k the key value being removed
+     * @throws IOException
+     */
+    public void remove(int k) throws IOException {
+        shards[shardOf(k)].remove(k);
+    }
+
+    /**
+     * Looks up the char fields of k, see AVLTree.stringFind().
+     * @param k the key value being searched for
+     * @return the char fields, or null if k is not in the tree
+     * @throws IOException
+     */
+    public LinkedList<String> stringFind(int k) throws IOException {
+        return shards[shardOf(k)].stringFind(k);
+    }
+
+    /**
+     * Looks up the int fields of k, see AVLTree.intFind().
+     * @param k the key value being searched for
+     * @return the int fields, or null if k is not in the tree
+     * @throws IOException
+     */
+    public LinkedList<Integer> intFind(int k) throws IOException {
+        return shards[shardOf(k)].intFind(k);
+    }
+
+    /**
+     * Inserts a batch of records, the shards in parallel. Records for the same shard are
+     * inserted in the order given.
+     * @param records the records
+     * @throws IOException
+     */
+    public void insertBatch(List<AVLTree.Record> records) throws IOException {
+        int[] keys = new int[records.size()];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = records.get(i).getKey();
+        runBatch(keys, (shard, i) -> {
+            AVLTree.Record r = records.get(i);
+            shard.insert(r.getKey(), r.getStringFields(), r.getIntFields());
+        });
+    }
+
+    /**
+     * Removes a batch of keys, the shards in parallel.
+     * @param keys the keys
+     * @throws IOException
+     */
+    public void removeBatch(int[] keys) throws IOException {
+        runBatch(keys, (shard, i) -> shard.remove(keys[i]));
+    }
+
+    /**
+     * Looks up the char fields of a batch of keys, the shards in parallel.
+     * @param keys the keys
+     * @return the char fields of each key in the order of keys, null for keys not in the tree
+     * @throws IOException
+     */
+    public List<LinkedList<String>> stringFindBatch(int[] keys) throws IOException {
+        List<LinkedList<String>> found = new ArrayList<>(Collections.nCopies(keys.length, null));
+        runBatch(keys, (shard, i) -> found.set(i, shard.stringFind(keys[i])));
+        return found;
+    }
+
+    /**
+     * Looks up the int fields of a batch of keys, the shards in parallel.
+     * @param keys the keys
+     * @return the int fields of each key in the order of keys, null for keys not in the tree
+     * @throws IOException
+     */
+    public List<LinkedList<Integer>> intFindBatch(int[] keys) throws IOException {
+        List<LinkedList<Integer>> found = new ArrayList<>(Collections.nCopies(keys.length, null));
+        runBatch(keys, (shard, i) -> found.set(i, shard.intFind(keys[i])));
+        return found;
+    }
+
+    //one step of a batch, done to the shard of keys[i]
+    private interface Step {
+        void run(AVLTree shard, int i) throws IOException;
+    }
+
+    /**
+     * Groups the positions of a batch by shard and runs each group as one task on the workers.
+     * Each position is handled by one task and the results are read only after every task
+     * is done, so the steps may write to distinct elements of a shared list.
+     * @param keys the keys of the batch
+     * @param step the work done for each position
+     * @throws IOException the first failure of any task
+     */
+    private void runBatch(int[] keys, Step step) throws IOException {
+        //count the keys of each shard, then lay the positions out shard by shard
+        int[] shardOfKey = new int[keys.length];
+        int[] start = new int[shards.length + 1];
+        for (int i = 0; i < keys.length; i++) {
+            shardOfKey[i] = shardOf(keys[i]);
+            start[shardOfKey[i] + 1]++;
+        }
+        for (int s = 0; s < shards.length; s++)
+            start[s + 1] += start[s];
+        int[] positions = new int[keys.length];
+        int[] next = Arrays.copyOf(start, shards.length);
+        for (int i = 0; i < keys.length; i++)
+            positions[next[shardOfKey[i]]++] = i;
+
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int s = 0; s < shards.length; s++) {
+            if (start[s] == start[s + 1])
+                continue;
+            AVLTree shard = shards[s];
+            int from = start[s], to = start[s + 1];
+            tasks.add(workers.submit(() -> {
+                for (int j = from; j < to; j++)
+                    step.run(shard, positions[j]);
+                return null;
+            }));
+        }
+
+        //wait for every task, even after one fails, so no task outlives the batch
+        Throwable failure = null;
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null)
+                    failure = new InterruptedIOException("interrupted while waiting for a batch");
+            }
+        }
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+    }
+
+    /**
+     * Streams the records with keys from lo to hi (inclusive) in ascending key order,
+     * merging the ordered scans of the shards that can hold keys in the range.
+     * The scan holds a cursor on each of those shards, which in copy-on-write mode pins the
+     * shard's version until the scan reaches its end, so close a scan that is abandoned early.
+     * @param lo the smallest key wanted
+     * @param hi the largest key wanted
+     * @return the scan, positioned before the first record
+     * @throws IOException
+     */
+    public Scan scan(int lo, int hi) throws IOException {
+        //a range shard outside [lo, hi] holds nothing wanted
+        int first = splits == null ? 0 : shardOf(lo);
+        int last = splits == null ? shards.length - 1 : shardOf(hi);
+        Scan scan = new Scan();
+        try {
+            for (int s = first; s <= last && lo <= hi; s++) {
+                AVLTree.Cursor c = shards[s].scan(lo, hi);
+                if (c.hasNext())
+                    scan.heads.add(new Head(c));
+            }
+        } catch (IOException | RuntimeException e) {
+            scan.close();
+            throw e;
+        }
+        return scan;
+    }
+
+    /**
+     * A merged scan over the shards, made by scan(). It closes itself once it reaches the end.
+     */
+    public static class Scan implements Iterator<AVLTree.Record>, AutoCloseable {
+        private final PriorityQueue<Head> heads = new PriorityQueue<>();
+
+        private Scan() {
+        }
+
+        /**
+         * @return true if there is another record in the range
+         */
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        /**
+         * @return the next record in the range
+         */
+        public AVLTree.Record next() {
+            Head h = heads.poll();
+            if (h == null)
+                throw new NoSuchElementException();
+            AVLTree.Record r = h.record;
+            if (h.cursor.hasNext()) {
+                h.record = h.cursor.next();
+                heads.add(h);
+            }
+            return r;
+        }
+
+        /**
+         * Closes the cursor of every shard the scan has not finished with.
+         */
+        public void close() {
+            for (Head h : heads)
+                h.cursor.close();
+            heads.clear();
+        }
+    }
+
+    //the next record of one shard's scan, ordered by key for the merge
+    private static class Head implements Comparable<Head> {
+        private final AVLTree.Cursor cursor;
+        private AVLTree.Record record;
+
+        private Head(AVLTree.Cursor cursor) {
+            this.cursor = cursor;
+            record = cursor.next();
+        }
+
+        public int compareTo(Head o) {
+            return Integer.compare(record.getKey(), o.record.getKey());
+        }
+    }
+
+    /**
+     * Compacts every shard in turn, see AVLTree.compact().
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        for (AVLTree shard : shards)
+            shard.compact();
+    }
+
+    /**
+     * Stops the workers and closes every shard.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        workers.shutdown();
+        IOException failure = null;
+        for (AVLTree shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+}
@@ -0,0 +1,49 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/*
+ * The byte level storage an AVLTree keeps its header and nodes in.
+ * Every access names its own position, so an implementation never relies on a shared file pointer.
+ */
+interface Storage {
+    /**
+     * Fills the remaining bytes of dst with the bytes stored at pos.
+     * @param pos the address in the file
+     * @param dst the buffer to fill
+     * @throws IOException if the bytes do not exist or cannot be read
+     */
+    void read(long pos, ByteBuffer dst) throws IOException;
+
+    /**
+     * Writes the remaining bytes of src at pos, growing the storage if needed.
+     * @param pos the address in the file
+     * @param src the bytes to write
+     * @throws IOException
+     */
+    void write(long pos, ByteBuffer src) throws IOException;
+
+    /**
+     * @return the number of bytes in use, which is also the next address at the end of the file
+     * @throws IOException
+     */
+    long length() throws IOException;
+
+    /**
+     * Sets the number of bytes in use.
+     * @param length the new length
+     * @throws IOException
+     */
+    void setLength(long length) throws IOException;
+
+    /**
+     * Forces everything written so far to the disk.
+     * @throws IOException
+     */
+    void force() throws IOException;
+
+    /**
+     * Closes the underlying file.
+     * @throws IOException
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,311 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * The live statistics of a tree. Counters are LongAdders, so threads counting at the same time
+ * do not contend, and each operation adds one entry to a log-linear latency histogram, which
+ * keeps the cost of leaving them on to a few counter updates and two clock reads per call.
+ */
+class TreeStats implements TreeStatsMXBean {
+    //the public operations that are timed, indexes into latencies
+    static final int INSERT = 0, REMOVE = 1, STRING_FIND = 2, INT_FIND = 3, FIND = 4, SCAN = 5,
+            BULK_LOAD = 6, COMPACT = 7;
+    private static final String[] NAMES = {"insert", "remove", "stringFind", "intFind", "find", "scan",
+            "bulkLoad", "compact"};
+
+    final LongAdder nodeReads = new LongAdder();
+    final LongAdder nodeWrites = new LongAdder();
+    final LongAdder rebalanceReads = new LongAdder();
+    final LongAdder storageReads = new LongAdder();
+    final LongAdder storageWrites = new LongAdder();
+    final LongAdder bytesRead = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+    final LongAdder seeks = new LongAdder();
+    final LongAdder leftRotations = new LongAdder();
+    final LongAdder rightRotations = new LongAdder();
+    final LongAdder leftRightRotations = new LongAdder();
+    final LongAdder rightLeftRotations = new LongAdder();
+    final LongAdder freeSpaceHits = new LongAdder();
+    final LongAdder fileGrowths = new LongAdder();
+    final LongAdder pageSplits = new LongAdder();
+    final LongAdder cacheHits = new LongAdder();
+    final LongAdder cacheMisses = new LongAdder();
+    final LongAdder filterSkips = new LongAdder();
+    private final Histogram[] latencies = new Histogram[NAMES.length];
+
+    TreeStats() {
+        for (int i = 0; i < latencies.length; i++)
+            latencies[i] = new Histogram();
+    }
+
+    /**
+     * Records a call of an operation that started at start.
+     * @param op the operation, one of the constants above
+     * @param start the System.nanoTime() when it started
+     */
+    void record(int op, long start) {
+        latencies[op].add(System.nanoTime() - start);
+    }
+
+    public long getNodeReads() {
+        return nodeReads.sum();
+    }
+
+    public long getNodeWrites() {
+        return nodeWrites.sum();
+    }
+
+    public long getRebalanceReads() {
+        return rebalanceReads.sum();
+    }
+
+    public long getStorageReads() {
+        return storageReads.sum();
+    }
+
+    public long getStorageWrites() {
+        return storageWrites.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getSeeks() {
+        return seeks.sum();
+    }
+
+    public long getLeftRotations() {
+        return leftRotations.sum();
+    }
+
+    public long getRightRotations() {
+        return rightRotations.sum();
+    }
+
+    public long getLeftRightRotations() {
+        return leftRightRotations.sum();
+    }
+
+    public long getRightLeftRotations() {
+        return rightLeftRotations.sum();
+    }
+
+    public long getFreeSpaceHits() {
+        return freeSpaceHits.sum();
+    }
+
+    public long getFileGrowths() {
+        return fileGrowths.sum();
+    }
+
+    public long getPageSplits() {
+        return pageSplits.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    public long getFilterSkips() {
+        return filterSkips.sum();
+    }
+
+    public Map<String, Latency> getOperations() {
+        Map<String, Latency> ops = new LinkedHashMap<>();
+        for (int i = 0; i < NAMES.length; i++)
+            ops.put(NAMES[i], latencies[i].summary());
+        return Collections.unmodifiableMap(ops);
+    }
+
+    /**
+     * @return a copy of the statistics as they are now
+     */
+    TreeStatsMXBean snapshot() {
+        return new Frozen(this);
+    }
+
+    /*
+     * Counts of nanosecond values in buckets of 1/8 of a power of two, so any value lands in
+     * one of 8 buckets per doubling and a percentile read from the bucket bounds is within 1/8.
+     */
+    private static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[8 * 62];
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        //values below 8 have a bucket each, above that the top 4 bits choose the bucket
+        private static int bucket(long v) {
+            if (v < 8)
+                return (int) Math.max(v, 0);
+            int e = 63 - Long.numberOfLeadingZeros(v);
+            return (e - 2) * 8 + (int) (v >>> (e - 3) & 7);
+        }
+
+        //the largest value that lands in bucket b
+        private static long upper(int b) {
+            if (b < 8)
+                return b;
+            int e = b / 8 + 2;
+            return ((8L + b % 8 + 1) << (e - 3)) - 1;
+        }
+
+        private void add(long nanos) {
+            buckets[bucket(nanos)].increment();
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        private Latency summary() {
+            long[] counts = new long[buckets.length];
+            long count = 0;
+            for (int i = 0; i < counts.length; i++)
+                count += counts[i] = buckets[i].sum();
+            return new Latency(count, count == 0 ? 0 : sum.sum() / 1000.0 / count,
+                    percentile(counts, count, 0.5), percentile(counts, count, 0.9),
+                    percentile(counts, count, 0.99), percentile(counts, count, 0.999), max.get() / 1000.0);
+        }
+
+        //the upper bound in microseconds of the bucket holding the value at fraction q of the counts
+        private static double percentile(long[] counts, long count, double q) {
+            if (count == 0)
+                return 0;
+            long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return upper(i) / 1000.0;
+            }
+            return upper(counts.length - 1) / 1000.0;
+        }
+    }
+
+    /*
+     * The statistics copied at one moment, returned by AVLTree.getStats().
+     */
+    private static class Frozen implements TreeStatsMXBean {
+        private final long[] counters;
+        private final Map<String, Latency> operations;
+
+        private Frozen(TreeStats s) {
+            counters = new long[] {s.getNodeReads(), s.getNodeWrites(), s.getRebalanceReads(),
+                    s.getStorageReads(), s.getStorageWrites(), s.getBytesRead(), s.getBytesWritten(),
+                    s.getSeeks(), s.getLeftRotations(), s.getRightRotations(), s.getLeftRightRotations(),
+                    s.getRightLeftRotations(), s.getFreeSpaceHits(), s.getFileGrowths(), s.getPageSplits(),
+                    s.getCacheHits(), s.getCacheMisses(), s.getFilterSkips()};
+            operations = s.getOperations();
+        }
+
+        public long getNodeReads() {
+            return counters[0];
+        }
+
+        public long getNodeWrites() {
+            return counters[1];
+        }
+
+        public long getRebalanceReads() {
+            return counters[2];
+        }
+
+        public long getStorageReads() {
+            return counters[3];
+        }
+
+        public long getStorageWrites() {
+            return counters[4];
+        }
+
+        public long getBytesRead() {
+            return counters[5];
+        }
+
+        public long getBytesWritten() {
+            return counters[6];
+        }
+
+        public long getSeeks() {
+            return counters[7];
+        }
+
+        public long getLeftRotations() {
+            return counters[8];
+        }
+
+        public long getRightRotations() {
+            return counters[9];
+        }
+
+        public long getLeftRightRotations() {
+            return counters[10];
+        }
+
+        public long getRightLeftRotations() {
+            return counters[11];
+        }
+
+        public long getFreeSpaceHits() {
+            return counters[12];
+        }
+
+        public long getFileGrowths() {
+            return counters[13];
+        }
+
+        public long getPageSplits() {
+            return counters[14];
+        }
+
+        public long getCacheHits() {
+            return counters[15];
+        }
+
+        public long getCacheMisses() {
+            return counters[16];
+        }
+
+        public long getFilterSkips() {
+            return counters[17];
+        }
+
+        public Map<String, Latency> getOperations() {
+            return operations;
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append("node reads ").append(getNodeReads()).append(", writes ").append(getNodeWrites())
+                    .append(", rebalance reads ").append(getRebalanceReads()).append('\n');
+            s.append("storage reads ").append(getStorageReads()).append(" (").append(getBytesRead())
+                    .append(" bytes), writes ").append(getStorageWrites()).append(" (").append(getBytesWritten())
+                    .append(" bytes), seeks ").append(getSeeks()).append('\n');
+            s.append("rotations LL ").append(getLeftRotations()).append(", RR ").append(getRightRotations())
+                    .append(", LR ").append(getLeftRightRotations()).append(", RL ").append(getRightLeftRotations()).append('\n');
+            s.append("free space hits ").append(getFreeSpaceHits()).append(", file growths ").append(getFileGrowths())
+                    .append(", page splits ").append(getPageSplits()).append('\n');
+            s.append("cache hits ").append(getCacheHits()).append(", misses ").append(getCacheMisses())
+                    .append(", filter skips ").append(getFilterSkips());
+            for (Map.Entry<String, Latency> op : operations.entrySet())
+                if (op.getValue().getCount() > 0)
+                    s.append('\n').append(op.getKey()).append(": ").append(op.getValue());
+            return s.toString();
+        }
+    }
+}
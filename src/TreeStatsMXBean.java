@@ -0,0 +1,161 @@
+import java.util.Map;
+
+/**
+ * The statistics of an AVLTree, registered with the platform MBean server under
+ * AVLTree:type=Tree,file=<file name> while the tree is open. AVLTree.getStats() returns a copy
+ * that no longer changes. Counters start at 0 when the tree is opened.
+ */
+public interface TreeStatsMXBean {
+    /**
+     * @return the nodes read from storage, one record read each
+     */
+    long getNodeReads();
+
+    /**
+     * @return the nodes written to storage, one record write each, or one slot of a bulk write
+     */
+    long getNodeWrites();
+
+    /**
+     * @return the children rebalancing needed that were not already in memory
+     */
+    long getRebalanceReads();
+
+    /**
+     * @return the read calls made on the file
+     */
+    long getStorageReads();
+
+    /**
+     * @return the write calls made on the file
+     */
+    long getStorageWrites();
+
+    /**
+     * @return the bytes read from the file
+     */
+    long getBytesRead();
+
+    /**
+     * @return the bytes written to the file
+     */
+    long getBytesWritten();
+
+    /**
+     * @return the reads and writes of the file that did not start where the one before ended
+     */
+    long getSeeks();
+
+    /**
+     * @return the single rotations with a left child, the fix for a left-left imbalance
+     */
+    long getLeftRotations();
+
+    /**
+     * @return the single rotations with a right child, the fix for a right-right imbalance
+     */
+    long getRightRotations();
+
+    /**
+     * @return the double rotations fixing a left-right imbalance
+     */
+    long getLeftRightRotations();
+
+    /**
+     * @return the double rotations fixing a right-left imbalance
+     */
+    long getRightLeftRotations();
+
+    /**
+     * @return the new nodes given space freed earlier: the free list, or a slot in an existing page
+     */
+    long getFreeSpaceHits();
+
+    /**
+     * @return the new nodes, or new pages in a paged file, that grew the file
+     */
+    long getFileGrowths();
+
+    /**
+     * @return the full pages split to make room, in a paged file
+     */
+    long getPageSplits();
+
+    /**
+     * @return the node reads served by the node cache
+     */
+    long getCacheHits();
+
+    /**
+     * @return the node reads that missed the node cache
+     */
+    long getCacheMisses();
+
+    /**
+     * @return the lookups and removes the Bloom filter answered without reading a node
+     */
+    long getFilterSkips();
+
+    /**
+     * @return the calls and latency of each public operation, by name
+     */
+    Map<String, Latency> getOperations();
+
+    /**
+     * The number of calls of an operation and the distribution of their latency.
+     * Percentiles are accurate to within 1/8 of their value.
+     */
+    class Latency {
+        private final long count;
+        private final double meanMicros;
+        private final double p50Micros;
+        private final double p90Micros;
+        private final double p99Micros;
+        private final double p999Micros;
+        private final double maxMicros;
+
+        Latency(long count, double meanMicros, double p50Micros, double p90Micros, double p99Micros,
+                double p999Micros, double maxMicros) {
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+            this.p999Micros = p999Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMicros() {
+            return meanMicros;
+        }
+
+        public double getP50Micros() {
+            return p50Micros;
+        }
+
+        public double getP90Micros() {
+            return p90Micros;
+        }
+
+        public double getP99Micros() {
+            return p99Micros;
+        }
+
+        public double getP999Micros() {
+            return p999Micros;
+        }
+
+        public double getMaxMicros() {
+            return maxMicros;
+        }
+
+        public String toString() {
+            return String.format("count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                    count, meanMicros, p50Micros, p90Micros, p99Micros, p999Micros, maxMicros);
+        }
+    }
+}
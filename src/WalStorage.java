@@ -0,0 +1,460 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/*
+ * Storage that makes changes durable through a write-ahead log kept next to the tree file.
+ * The writes of one operation form a transaction. commit() appends their after images to the log
+ * as one checksummed record, and a flusher thread forces the log for many transactions at once
+ * (group commit), as soon as a batch is big enough, has waited long enough, or a caller is waiting
+ * with nothing queued behind it.
+ * Until its transaction is on disk a write lives only in an overlay of pages kept in memory, so
+ * the tree file never holds a change the log could not redo. Durable pages are then copied to the
+ * tree file, and once the log holds nothing the tree file lacks it is emptied (a checkpoint).
+ * Opening a tree replays whatever complete records the log still holds.
+ *
+ * A log record is: body length (int), body, CRC32 of the body (int).
+ * The body is: transaction number (long), number of extents (int), and for each extent its
+ * position (long), its length (int) and its bytes. A length of -1 records setLength(position).
+ */
+class WalStorage implements Storage {
+    static final int PAGE_SIZE = 4096; //bytes per overlay page
+    private static final long CHECKPOINT_SIZE = 64L << 20; //log bytes that trigger a checkpoint
+
+    private final Storage base;
+    private final FileChannel log;
+    private final long maxDelayNanos; //the longest a committed transaction waits for the flusher
+    private final int maxBatchBytes; //log bytes that make the flusher force right away
+    private final Thread flusher;
+    private final Object applying = new Object(); //held while durable pages are copied to the tree file
+
+    //everything below is guarded by this object's monitor
+    private final HashMap<Long, Page> pages = new HashMap<>(); //pages written but not yet in the tree file
+    private final ArrayDeque<long[]> lengths = new ArrayDeque<>(); //{transaction, length} not yet applied
+    private final ByteArrayOutputStream extents = new ByteArrayOutputStream(); //the open transaction
+    private final DataOutputStream extentsOut = new DataOutputStream(extents);
+    private int numExtents;
+    private long length; //the logical length, including pages still in the overlay
+    private long shrunkTo = Long.MAX_VALUE; //the smallest length set since the tree file's length was last updated
+    private long logSize; //the end of the log
+    private long nextTx = 1; //the number of the open transaction
+    private long appendedTx; //the last transaction written to the log
+    private long durableTx; //the last transaction known to be on disk
+    private long pendingBytes; //log bytes written since the last force
+    private long oldestPending; //System.nanoTime() of the first commit since the last force
+    private boolean hurry; //a caller is waiting and nothing is queued behind it
+    private boolean closed;
+    private IOException failure; //the error that stopped the flusher, reported to every waiter
+
+    //one overlay page and the last transaction that wrote to it
+    private static class Page {
+        private final byte[] data = new byte[PAGE_SIZE];
+        private long tx;
+    }
+
+    /**
+     * Replays the log onto base, then starts logging every change made through this storage.
+     * @param base the storage of the tree file
+     * @param logFile the log file, created if it does not exist
+     * @param maxDelayMicros the longest a commit waits to be grouped with others
+     * @param maxBatchBytes the log bytes that end a group early
+     * @throws IOException
+     */
+    WalStorage(Storage base, File logFile, long maxDelayMicros, int maxBatchBytes) throws IOException {
+        this.base = base;
+        this.maxDelayNanos = maxDelayMicros * 1000;
+        this.maxBatchBytes = maxBatchBytes;
+        log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover(base, log);
+        length = base.length();
+        flusher = new Thread(this::flushLoop, "wal-flusher " + logFile.getName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Replays the log of a tree opened without logging, if the last run left one behind.
+     * @param base the storage of the tree file
+     * @param logFile the log file
+     * @return the number of transactions replayed
+     * @throws IOException
+     */
+    static int recover(Storage base, File logFile) throws IOException {
+        if (!logFile.exists())
+            return 0;
+        try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return recover(base, channel);
+        }
+    }
+
+    /**
+     * Redoes every complete record in a log, then empties it.
+     * A torn or corrupt record ends the replay, since nothing after it was ever acknowledged.
+     * @param base the storage of the tree file
+     * @param log the log
+     * @return the number of transactions replayed
+     * @throws IOException
+     */
+    private static int recover(Storage base, FileChannel log) throws IOException {
+        long size = log.size();
+        long pos = 0;
+        int replayed = 0;
+        ByteBuffer word = ByteBuffer.allocate(4);
+        while (pos + 4 <= size) {
+            word.clear();
+            readFully(log, pos, word);
+            int bodyLength = word.getInt(0);
+            if (bodyLength < 12 || pos + 8 + bodyLength > size)
+                break;
+            ByteBuffer body = ByteBuffer.allocate(bodyLength + 4);
+            readFully(log, pos + 4, body);
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), 0, bodyLength);
+            if ((int) crc.getValue() != body.getInt(bodyLength))
+                break;
+
+            body.position(8);
+            int count = body.getInt();
+            for (int i = 0; i < count; i++) {
+                long at = body.getLong();
+                int n = body.getInt();
+                if (n < 0) {
+                    base.setLength(at);
+                    continue;
+                }
+                ByteBuffer bytes = body.slice(body.position(), n);
+                base.write(at, bytes);
+                body.position(body.position() + n);
+            }
+            replayed++;
+            pos += 8 + bodyLength;
+        }
+        if (size > 0) {
+            base.force();
+            log.truncate(0);
+            log.force(false);
+        }
+        return replayed;
+    }
+
+    //positional read that fills dst
+    private static void readFully(FileChannel channel, long pos, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, pos);
+            if (n < 0)
+                throw new EOFException("read past the end of the log at " + pos);
+            pos += n;
+        }
+    }
+
+    public void read(long pos, ByteBuffer dst) throws IOException {
+        if (pos + dst.remaining() > length())
+            throw new EOFException("read past the end of the file at " + pos);
+        //page by page, from the overlay where it has the page and from the tree file elsewhere
+        while (dst.hasRemaining()) {
+            int offset = (int) (pos % PAGE_SIZE);
+            int n = Math.min(dst.remaining(), PAGE_SIZE - offset);
+            boolean found;
+            synchronized (this) {
+                Page p = pages.get(pos / PAGE_SIZE);
+                found = p != null;
+                if (found)
+                    dst.put(p.data, offset, n);
+            }
+            //bytes cut off by a shrink the tree file has not seen yet read as zeros
+            if (!found && pos >= shrunkTo()) {
+                for (int i = 0; i < n; i++)
+                    dst.put((byte) 0);
+            }
+            //the flusher writes a page to the tree file before dropping it from the overlay, and
+            //bytes past the end of the tree file are a gap left by a write to a later page still
+            //in the overlay, which reads as zeros as it will once that page reaches the file
+            else if (!found) {
+                int inFile = (int) Math.max(0, Math.min(n, base.length() - pos));
+                int limit = dst.limit();
+                dst.limit(dst.position() + inFile);
+                base.read(pos, dst);
+                dst.limit(limit);
+                for (int i = inFile; i < n; i++)
+                    dst.put((byte) 0);
+            }
+            pos += n;
+        }
+    }
+
+    private synchronized long shrunkTo() {
+        return shrunkTo;
+    }
+
+    public synchronized void write(long pos, ByteBuffer src) throws IOException {
+        checkOpen();
+        int n = src.remaining();
+        byte[] bytes = new byte[n];
+        src.get(src.position(), bytes);
+        extentsOut.writeLong(pos);
+        extentsOut.writeInt(n);
+        extentsOut.write(bytes);
+        numExtents++;
+
+        while (src.hasRemaining()) {
+            int offset = (int) (pos % PAGE_SIZE);
+            int chunk = Math.min(src.remaining(), PAGE_SIZE - offset);
+            src.get(page(pos / PAGE_SIZE).data, offset, chunk);
+            pos += chunk;
+        }
+        length = Math.max(length, pos);
+    }
+
+    //the overlay page number no, read in from the tree file the first time it is written
+    private Page page(long no) throws IOException {
+        Page p = pages.get(no);
+        if (p == null) {
+            p = new Page();
+            long start = no * PAGE_SIZE;
+            long inFile = Math.min(PAGE_SIZE, Math.min(base.length(), shrunkTo) - start);
+            if (inFile > 0)
+                base.read(start, ByteBuffer.wrap(p.data, 0, (int) inFile));
+            pages.put(no, p);
+        }
+        p.tx = nextTx;
+        return p;
+    }
+
+    public synchronized long length() {
+        return length;
+    }
+
+    public synchronized void setLength(long newLength) throws IOException {
+        checkOpen();
+        extentsOut.writeLong(newLength);
+        extentsOut.writeInt(-1);
+        numExtents++;
+        lengths.add(new long[] {nextTx, newLength});
+
+        //drop what a shrink cuts off, so a later growth reads zeros there
+        if (newLength < length) {
+            shrunkTo = Math.min(shrunkTo, newLength);
+            long lastPage = (newLength - 1) / PAGE_SIZE;
+            pages.keySet().removeIf(no -> no * PAGE_SIZE >= newLength);
+            Page p = pages.get(lastPage);
+            if (p != null && newLength > 0)
+                Arrays.fill(p.data, (int) (newLength - lastPage * PAGE_SIZE), PAGE_SIZE, (byte) 0);
+        }
+        length = newLength;
+    }
+
+    /**
+     * Ends the open transaction, appending its writes to the log as one record.
+     * The record is not yet on disk; awaitDurable() waits for that.
+     * @return the number of the transaction, or of the last one if this one wrote nothing
+     * @throws IOException
+     */
+    synchronized long commit() throws IOException {
+        checkOpen();
+        if (numExtents == 0)
+            return appendedTx;
+        long tx = nextTx++;
+        int bodyLength = 12 + extents.size();
+        ByteBuffer record = ByteBuffer.allocate(8 + bodyLength);
+        record.putInt(bodyLength);
+        record.putLong(tx);
+        record.putInt(numExtents);
+        record.put(extents.toByteArray());
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, bodyLength);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        while (record.hasRemaining())
+            logSize += log.write(record, logSize);
+        extents.reset();
+        numExtents = 0;
+
+        if (pendingBytes == 0)
+            oldestPending = System.nanoTime();
+        pendingBytes += 8 + bodyLength;
+        appendedTx = tx;
+        notifyAll();
+        return tx;
+    }
+
+    /**
+     * Waits until transaction tx is on disk.
+     * @param tx a number returned by commit()
+     * @param alone true if no other change is about to commit, so waiting for one is pointless
+     * @throws IOException if the log could not be forced
+     */
+    synchronized void awaitDurable(long tx, boolean alone) throws IOException {
+        if (alone) {
+            hurry = true;
+            notifyAll();
+        }
+        try {
+            while (durableTx < tx && failure == null)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for the log");
+        }
+        if (durableTx < tx)
+            throw failure;
+    }
+
+    //forces groups of transactions and moves their pages to the tree file until closed
+    private void flushLoop() {
+        try {
+            while (true) {
+                long target;
+                synchronized (this) {
+                    while (true) {
+                        if (closed && appendedTx == durableTx)
+                            return;
+                        if (appendedTx > durableTx) {
+                            long waited = System.nanoTime() - oldestPending;
+                            if (closed || hurry || pendingBytes >= maxBatchBytes || waited >= maxDelayNanos)
+                                break;
+                            long left = maxDelayNanos - waited;
+                            wait(left / 1000000, (int) (left % 1000000));
+                        }
+                        else
+                            wait();
+                    }
+                    target = appendedTx;
+                    pendingBytes = 0;
+                    hurry = false;
+                }
+
+                log.force(false);
+                synchronized (this) {
+                    durableTx = target;
+                    notifyAll();
+                }
+                apply(target);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                failure = new InterruptedIOException("log flusher interrupted");
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Copies the pages of transactions up to target into the tree file and drops them from the
+     * overlay, unless a later transaction has written to them since. Empties the log once the
+     * overlay is empty and it has grown past CHECKPOINT_SIZE.
+     * @param target the last durable transaction
+     * @throws IOException
+     */
+    private void apply(long target) throws IOException {
+        //one thread at a time, so an older image can never land after a newer one
+        synchronized (applying) {
+            ArrayList<Long> numbers = new ArrayList<>();
+            ArrayList<byte[]> images = new ArrayList<>();
+            long applyLength = -1;
+            long end;
+            synchronized (this) {
+                while (!lengths.isEmpty() && lengths.peek()[0] <= target)
+                    applyLength = lengths.poll()[1];
+                for (Map.Entry<Long, Page> e : pages.entrySet()) {
+                    if (e.getValue().tx <= target) {
+                        numbers.add(e.getKey());
+                        images.add(e.getValue().data.clone());
+                    }
+                }
+                end = length;
+            }
+
+            if (applyLength >= 0)
+                base.setLength(applyLength);
+            for (int i = 0; i < numbers.size(); i++) {
+                long start = numbers.get(i) * PAGE_SIZE;
+                int n = (int) Math.min(PAGE_SIZE, end - start);
+                if (n > 0)
+                    base.write(start, ByteBuffer.wrap(images.get(i), 0, n));
+            }
+
+            synchronized (this) {
+                for (long no : numbers) {
+                    Page p = pages.get(no);
+                    if (p != null && p.tx <= target)
+                        pages.remove(no);
+                }
+                if (lengths.isEmpty())
+                    shrunkTo = Long.MAX_VALUE;
+                if (logSize >= CHECKPOINT_SIZE && pages.isEmpty() && lengths.isEmpty() && appendedTx == durableTx)
+                    checkpoint();
+            }
+        }
+    }
+
+    //makes the tree file durable and empties the log, called with the monitor held and nothing pending
+    private void checkpoint() throws IOException {
+        base.force();
+        log.truncate(0);
+        logSize = 0;
+    }
+
+    /**
+     * Writes straight to the tree file without logging, for space no transaction has touched.
+     * force() must be called before anything that refers to the space is committed.
+     * @param pos the address in the file
+     * @param src the bytes to write
+     * @throws IOException
+     */
+    synchronized void writeUnlogged(long pos, ByteBuffer src) throws IOException {
+        checkOpen();
+        long end = pos + src.remaining();
+        base.write(pos, src);
+        length = Math.max(length, end);
+    }
+
+    /**
+     * Commits the open transaction, waits for every transaction to reach the tree file,
+     * and forces the tree file, leaving the log empty.
+     * @throws IOException
+     */
+    public void force() throws IOException {
+        long tx = commit();
+        awaitDurable(tx, true);
+        apply(tx);
+        synchronized (this) {
+            //only a change committed by another thread meanwhile keeps the log from emptying
+            if (pages.isEmpty() && lengths.isEmpty() && appendedTx == durableTx)
+                checkpoint();
+            else
+                base.force();
+        }
+    }
+
+    public void close() throws IOException {
+        force();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+        base.close();
+    }
+
+    //fails fast once the flusher has stopped
+    private void checkOpen() throws IOException {
+        if (failure != null)
+            throw new IOException("the log failed", failure);
+        if (closed)
+            throw new IOException("the log is closed");
+    }
+}